@@ -0,0 +1,397 @@
+package hu.benjaminteke.expensecalculator.api;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.common.cache.CacheStats;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import hu.benjaminteke.expensecalculator.datamodel.DataManager;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Embedded HTTP server exposing the {@link DataManager} operations as JSON endpoints on the local database.
+ * <ul>
+ * <li>POST /expenses - append one expense: {"expense": -12.5, "category": "food", "tags": ["lunch"]}</li>
+ * <li>POST /expenses/batch - append many in one transaction: {"expenses": [{"expense": -12.5, "key": "a1"}, ...]}</li>
+ * <li>GET /expenses?start=..&amp;end=..[&amp;category=..&amp;tags=a,b&amp;anyTags=a,b] - range query</li>
+ * <li>GET /balance - the last row</li>
+ * <li>GET /aggregates?start=..&amp;end=..[&amp;category=..&amp;tags=a,b&amp;anyTags=a,b] - count and sum</li>
+ * <li>GET /stats - hit and miss statistics of the read cache</li>
+ * </ul>
+ * Requests run on a bounded executor. When its queue is full the accepting thread runs the request itself,
+ * which stops accepting new connections until the load drops. Appends go through the ledger writer of
+ * {@link DataManager#submitData}, which gives the balances in order and commits concurrent appends together.
+ * The spreadsheet is not contacted, it catches up on the next sync.
+ * <p>
+ * Appends may carry an idempotency key, in the Idempotency-Key header or in the "key" field of the batch
+ * items; batch items without one get the header followed by their index. A retried append with a written key
+ * is not written again, a single append returns the row written the first time.
+ */
+public class ApiServer {
+    private final static Logger LOGGER = Logger.getLogger(ApiServer.class.getName());
+
+    /**
+     * Global instance of the JSON factory.
+     */
+    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+    /**
+     * Request header of the idempotency key of an append.
+     */
+    private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
+    private final HttpServer server;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Create a server, the database has to be initialized before starting it.
+     *
+     * @param port    port to listen on, 0 to pick a free one
+     * @param threads number of request handler threads
+     * @throws IOException throws an error if the port can not be bound
+     */
+    public ApiServer(int port, int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 16), new ThreadPoolExecutor.CallerRunsPolicy());
+
+        server.setExecutor(executor);
+        server.createContext("/expenses/batch", exchange -> handle(exchange, "POST", this::appendBatch));
+        server.createContext("/expenses", exchange -> {
+            if ("POST".equals(exchange.getRequestMethod())) {
+                handle(exchange, "POST", this::append);
+            } else {
+                handle(exchange, "GET", ApiServer::range);
+            }
+        });
+        server.createContext("/balance", exchange -> handle(exchange, "GET", ApiServer::balance));
+        server.createContext("/aggregates", exchange -> handle(exchange, "GET", ApiServer::aggregates));
+        server.createContext("/stats", exchange -> handle(exchange, "GET", ApiServer::stats));
+    }
+
+    /**
+     * Start listening.
+     */
+    public void start() {
+        server.start();
+        LOGGER.log(Level.INFO, "API server listening on port {0}.", String.valueOf(getPort()));
+    }
+
+    /**
+     * Stop the server, waiting at most the given time for the running requests.
+     *
+     * @param delaySeconds seconds to wait for the running requests
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+    }
+
+    /**
+     * Get the port the server is bound to.
+     *
+     * @return the port
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Append one expense.
+     *
+     * @param exchange the request
+     * @return the appended row
+     * @throws IOException throws an error if the body is invalid
+     */
+    private Object append(HttpExchange exchange) throws IOException {
+        GenericJson body = parseBody(exchange);
+        Object[] row = toRow(body);
+
+        try {
+            return toJsonRow(DataManager.submitData(((Number) row[0]).doubleValue(), (String) row[1],
+                    toTags(row[2]), exchange.getRequestHeaders().getFirst(IDEMPOTENCY_KEY_HEADER)).join());
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IllegalArgumentException) {
+                throw (IllegalArgumentException) e.getCause();
+            }
+            throw new IllegalStateException("Could not write to the database.", e.getCause());
+        }
+    }
+
+    /**
+     * Append many expenses in one transaction.
+     *
+     * @param exchange the request
+     * @return the number of appended and skipped rows and the last row
+     * @throws IOException throws an error if the body is invalid
+     */
+    private Object appendBatch(HttpExchange exchange) throws IOException {
+        GenericJson body = parseBody(exchange);
+        Object expenses = body.get("expenses");
+
+        if (!(expenses instanceof Collection)) {
+            throw new IllegalArgumentException("Expected an expenses array.");
+        }
+
+        String batchKey = exchange.getRequestHeaders().getFirst(IDEMPOTENCY_KEY_HEADER);
+        List<Object[]> rows = new ArrayList<>();
+        for (Object expense : (Collection<?>) expenses) {
+            if (!(expense instanceof Map)) {
+                throw new IllegalArgumentException("Expected expense objects.");
+            }
+            Object[] row = toRow((Map<?, ?>) expense);
+            row[2] = toTags(row[2]);
+            if (row[3] == null && batchKey != null) {
+                row[3] = batchKey + "#" + rows.size();
+            }
+            rows.add(row);
+        }
+
+        int appended = DataManager.writeLocalBatch(rows);
+        if (appended < 0) {
+            throw new IllegalStateException("Could not write to the database.");
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("appended", appended);
+        result.put("duplicates", rows.size() - appended);
+        result.put("last", toJsonRow(DataManager.readLastData()));
+        return result;
+    }
+
+    /**
+     * Query the rows of a time range, optionally filtered by category and tags.
+     *
+     * @param exchange the request
+     * @return the matching rows
+     */
+    private static Object range(HttpExchange exchange) {
+        Map<String, String> query = parseQuery(exchange);
+        Object[][] rows;
+
+        if (query.containsKey("category") || query.containsKey("tags") || query.containsKey("anyTags")) {
+            rows = DataManager.readDataByTags(query.get("category"), splitList(query.get("tags")),
+                    splitList(query.get("anyTags")), query.get("start"), query.get("end"));
+        } else {
+            rows = DataManager.readDataInRange(query.get("start"), query.get("end"));
+        }
+
+        List<Object> result = new ArrayList<>(rows.length);
+        for (Object[] row : rows) {
+            result.add(toJsonRow(row));
+        }
+        return result;
+    }
+
+    /**
+     * Get the last row.
+     *
+     * @param exchange the request
+     * @return the last row
+     */
+    private static Object balance(HttpExchange exchange) {
+        return toJsonRow(DataManager.readLastData());
+    }
+
+    /**
+     * Count and sum the rows matching the filters.
+     *
+     * @param exchange the request
+     * @return the count and the sum
+     */
+    private static Object aggregates(HttpExchange exchange) {
+        Map<String, String> query = parseQuery(exchange);
+        List<String> allOf = splitList(query.get("tags"));
+        List<String> anyOf = splitList(query.get("anyTags"));
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("count", DataManager.countDataByTags(query.get("category"), allOf, anyOf,
+                query.get("start"), query.get("end")));
+        result.put("sum", DataManager.sumDataByTags(query.get("category"), allOf, anyOf,
+                query.get("start"), query.get("end")));
+        return result;
+    }
+
+    /**
+     * Get the statistics of the read cache.
+     *
+     * @param exchange the request
+     * @return the hit and miss counts
+     */
+    private static Object stats(HttpExchange exchange) {
+        CacheStats stats = DataManager.getCacheStats();
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("hits", stats.hitCount());
+        result.put("misses", stats.missCount());
+        result.put("hitRate", stats.hitRate());
+        result.put("evictions", stats.evictionCount());
+        return result;
+    }
+
+    /**
+     * Check the method, run the handler and send its result as JSON. Invalid requests get 400,
+     * failures 500.
+     *
+     * @param exchange the request
+     * @param method   the expected HTTP method
+     * @param handler  the handler of the endpoint
+     * @throws IOException throws an error if the response can not be sent
+     */
+    private static void handle(HttpExchange exchange, String method, Handler handler) throws IOException {
+        int status = 200;
+        Object result;
+
+        try {
+            if (!method.equals(exchange.getRequestMethod())) {
+                status = 405;
+                result = Collections.singletonMap("error", "Method not allowed.");
+            } else {
+                result = handler.handle(exchange);
+            }
+        } catch (IllegalArgumentException | ClassCastException | IOException e) {
+            status = 400;
+            result = Collections.singletonMap("error", String.valueOf(e.getMessage()));
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Error handling {0}: {1}", new Object[]{exchange.getRequestURI(), e.toString()});
+            status = 500;
+            result = Collections.singletonMap("error", String.valueOf(e.getMessage()));
+        }
+
+        byte[] response = JSON_FACTORY.toByteArray(result);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, response.length);
+
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    /**
+     * Parse the JSON body of a request.
+     *
+     * @param exchange the request
+     * @return the parsed body
+     * @throws IOException throws an error if the body is not a JSON object
+     */
+    private static GenericJson parseBody(HttpExchange exchange) throws IOException {
+        return JSON_FACTORY.createJsonParser(exchange.getRequestBody(), StandardCharsets.UTF_8)
+                .parseAndClose(GenericJson.class);
+    }
+
+    /**
+     * Helper function to convert a JSON expense object to a row of the expense, the category, the tags and the
+     * idempotency key.
+     *
+     * @param expense the JSON object
+     * @return the row
+     */
+    private static Object[] toRow(Map<?, ?> expense) {
+        Object value = expense.get("expense");
+
+        if (!(value instanceof Number)) {
+            throw new IllegalArgumentException("Expected a numeric expense.");
+        }
+        double number = ((Number) value).doubleValue();
+        if (Double.isNaN(number) || Double.isInfinite(number)) {
+            throw new IllegalArgumentException("Expected a finite expense.");
+        }
+
+        Object key = expense.get("key");
+        return new Object[]{value, expense.get("category"), expense.get("tags"), key != null ? key.toString() : null};
+    }
+
+    /**
+     * Helper function to convert the JSON tags to strings.
+     *
+     * @param tags the JSON tags array, may be null
+     * @return the tags or null
+     */
+    private static List<String> toTags(Object tags) {
+        if (tags == null) {
+            return null;
+        }
+        if (!(tags instanceof Collection)) {
+            throw new IllegalArgumentException("Expected a tags array.");
+        }
+
+        List<String> result = new ArrayList<>();
+        for (Object tag : (Collection<?>) tags) {
+            result.add(String.valueOf(tag));
+        }
+        return result;
+    }
+
+    /**
+     * Helper function to convert a row to a JSON object.
+     *
+     * @param row the row of the time, the expense and the balance
+     * @return the JSON object
+     */
+    private static Map<String, Object> toJsonRow(Object[] row) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("time", row.length > 0 ? row[0] : null);
+        result.put("expense", row.length > 1 ? row[1] : null);
+        result.put("balance", row.length > 2 ? row[2] : null);
+        return result;
+    }
+
+    /**
+     * Helper function to parse the query string of a request.
+     *
+     * @param exchange the request
+     * @return the query parameters
+     */
+    private static Map<String, String> parseQuery(HttpExchange exchange) {
+        Map<String, String> result = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+
+        if (query == null) {
+            return result;
+        }
+
+        for (String parameter : query.split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator > 0) {
+                try {
+                    result.put(URLDecoder.decode(parameter.substring(0, separator), "UTF-8"),
+                            URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Helper function to split a comma separated list.
+     *
+     * @param list the list, may be null
+     * @return the elements of the list, null if the list is null
+     */
+    private static List<String> splitList(String list) {
+        return list != null ? Arrays.asList(list.split("\\s*,\\s*")) : null;
+    }
+
+    /**
+     * Handler of an endpoint, returning the object to send as JSON.
+     */
+    private interface Handler {
+        Object handle(HttpExchange exchange) throws IOException;
+    }
+}
@@ -1,10 +1,12 @@
 package hu.benjaminteke.expensecalculator.app;
 
+import hu.benjaminteke.expensecalculator.datamodel.DataManager;
 import hu.benjaminteke.expensecalculator.datamodel.DatabaseConnection;
 import hu.benjaminteke.expensecalculator.gui.ExpenseCalculatorGui;
 
 import javax.swing.*;
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -15,17 +17,49 @@ public class ExpenseCalculatorApp {
     private final static Logger LOGGER = Logger.getLogger(ExpenseCalculatorApp.class.getName());
 
     /**
-     * Main method
+     * Time of entering main, the startup phases are logged relative to it.
+     */
+    private final static long START_TIME = System.nanoTime();
+
+    /**
+     * Main method. Starts the GUI without arguments, otherwise runs the headless command given in the arguments.
      * @param args command line arguments
      * @throws IOException throws exception when an error occured in database creation or gui initialization
      */
     public static void main(String[] args) throws IOException {
+        if (args.length > 0) {
+            System.setProperty("java.awt.headless", "true");
+            System.exit(ExpenseCalculatorCli.run(args));
+        }
+
+        startGui();
+    }
+
+    /**
+     * Sets the look and feel, initializes the database and shows the GUI. The spreadsheet is synced
+     * after the window is shown, the export classes are loaded on the first export.
+     */
+    private static void startGui() {
         try {
             // Set System L&F
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
+            logStartupPhase("Look and feel set");
 
             DatabaseConnection.initDatabase();
-            javax.swing.SwingUtilities.invokeLater(() -> new ExpenseCalculatorGui().setVisible(true));
+            DataManager.startSheetMirror();
+            logStartupPhase("Database initialized");
+
+            javax.swing.SwingUtilities.invokeLater(() -> {
+                ExpenseCalculatorGui gui = new ExpenseCalculatorGui();
+                gui.setVisible(true);
+                logStartupPhase("Window shown");
+
+                if (Boolean.getBoolean("expensecalculator.exitAfterStartup")) {
+                    // training run of the class data sharing archive, see the appcds profile of the pom
+                    System.exit(0);
+                }
+                gui.syncInBackground();
+            });
 
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Error occured: {0}.", e.toString());
@@ -34,4 +68,14 @@ public class ExpenseCalculatorApp {
 
 
     }
+
+    /**
+     * Log the time elapsed since main was entered.
+     *
+     * @param phase the finished startup phase
+     */
+    private static void logStartupPhase(String phase) {
+        LOGGER.log(Level.INFO, "{0} after {1} ms.", new Object[]{phase,
+                String.valueOf(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - START_TIME))});
+    }
 }
@@ -0,0 +1,416 @@
+package hu.benjaminteke.expensecalculator.app;
+
+import com.google.common.collect.Lists;
+import hu.benjaminteke.expensecalculator.api.ApiServer;
+import hu.benjaminteke.expensecalculator.datamodel.Budget;
+import hu.benjaminteke.expensecalculator.datamodel.DataManager;
+import hu.benjaminteke.expensecalculator.datamodel.DatabaseConnection;
+import hu.benjaminteke.expensecalculator.datamodel.ExpenseImporter;
+import hu.benjaminteke.expensecalculator.datamodel.XlsxExporter;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Headless command line mode, started by {@link ExpenseCalculatorApp} when it gets arguments.
+ * Every command initializes only the subsystems it needs, Swing is never loaded and the spreadsheet
+ * is only contacted by the sync command.
+ */
+public class ExpenseCalculatorCli {
+    private final static Logger LOGGER = Logger.getLogger(ExpenseCalculatorCli.class.getName());
+
+    private final static String USAGE = "Usage:\n"
+            + "  add <amount> [--category name] [--tags a,b] [--key id]\n"
+            + "  export <name> [--start time] [--end time] [--sheets none|month|year]\n"
+            + "  sync\n"
+            + "  archive [--days 365]\n"
+            + "  budget set <limit> [--period day|week|month] [--category name]\n"
+            + "  budget list\n"
+            + "  budget remove <id>\n"
+            + "  report [--category name] [--tags a,b] [--any-tags a,b] [--start time] [--end time]\n"
+            + "  import [--ofx] [--delimiter ;] [--date-format yyyy-MM-dd] [--skip-header] <file>\n"
+            + "  serve [--port 8080] [--threads 16]\n"
+            + "Times are in the yyyy/MM/dd HH:mm:ss format. An add with the --key of an earlier one is not "
+            + "written again.";
+
+    /**
+     * Run a command.
+     *
+     * @param args command line arguments, the first one is the command
+     * @return exit code of the command
+     */
+    public static int run(String[] args) {
+        if (args.length == 0) {
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        List<String> positional = new ArrayList<>();
+        Map<String, String> options = new HashMap<>();
+
+        try {
+            parseArguments(Arrays.copyOfRange(args, 1, args.length), positional, options);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        switch (args[0]) {
+            case "add":
+                return add(positional, options);
+            case "export":
+                return export(positional, options);
+            case "sync":
+                return sync();
+            case "archive":
+                return archive(options);
+            case "budget":
+                return budget(positional, options);
+            case "report":
+                return report(options);
+            case "import":
+                return importFile(positional, options);
+            case "serve":
+                return serve(options);
+            default:
+                System.err.println(USAGE);
+                return 2;
+        }
+    }
+
+    /**
+     * Add an expense to the database, once per key if a key is given.
+     *
+     * @param positional positional arguments
+     * @param options    options of the command
+     * @return exit code of the command
+     */
+    private static int add(List<String> positional, Map<String, String> options) {
+        if (positional.size() != 1) {
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        double amount;
+        try {
+            amount = Double.parseDouble(positional.get(0));
+        } catch (NumberFormatException n) {
+            System.err.println("Not a valid number: " + positional.get(0));
+            return 2;
+        }
+
+        DatabaseConnection.initDatabase();
+        DataManager.addBudgetListener(Runnable::run, alert -> System.err.println(alert));
+
+        if (!DataManager.writeLocalData(amount, options.get("category"), splitList(options.get("tags")),
+                options.get("key"))) {
+            System.err.println("Could not write the expense to the database.");
+            return 1;
+        }
+
+        Object balance = readBalance();
+        if (balance == null) {
+            System.err.println("Could not read the balance.");
+            return 1;
+        }
+
+        System.out.println(balance);
+        return 0;
+    }
+
+    /**
+     * Export the database to an xlsx file.
+     *
+     * @param positional positional arguments
+     * @param options    options of the command
+     * @return exit code of the command
+     */
+    private static int export(List<String> positional, Map<String, String> options) {
+        if (positional.size() != 1) {
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        XlsxExporter.Partition partition;
+        try {
+            partition = XlsxExporter.Partition.valueOf(options.getOrDefault("sheets", "none").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Not a valid sheet partitioning: " + options.get("sheets"));
+            return 2;
+        }
+
+        DatabaseConnection.initDatabase();
+
+        if (!DataManager.isDatabaseAvailable()) {
+            System.err.println("The database is not available.");
+            return 1;
+        }
+
+        try {
+            XlsxExporter.exportToXlsx(positional.get(0), Lists.newArrayList(DataManager.readAllData()),
+                    options.getOrDefault("start", ""), options.getOrDefault("end", ""), partition, null);
+        } catch (IOException i) {
+            LOGGER.log(Level.SEVERE, "Error creating xlsx file. {0}", i.toString());
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Move the old rows of the database into the archive.
+     *
+     * @param options options of the command
+     * @return exit code of the command
+     */
+    private static int archive(Map<String, String> options) {
+        Integer days = null;
+        try {
+            if (options.containsKey("days")) {
+                days = Integer.parseInt(options.get("days"));
+            }
+        } catch (NumberFormatException n) {
+            System.err.println("Not a valid number of days: " + options.get("days"));
+            return 2;
+        }
+
+        DatabaseConnection.initDatabase();
+
+        int archived = days != null ? DataManager.archiveData(days) : DataManager.archiveData();
+        if (archived < 0) {
+            return 1;
+        }
+
+        System.out.println("Archived: " + archived);
+        return 0;
+    }
+
+    /**
+     * Set, list or remove budgets.
+     *
+     * @param positional positional arguments
+     * @param options    options of the command
+     * @return exit code of the command
+     */
+    private static int budget(List<String> positional, Map<String, String> options) {
+        if (positional.isEmpty()) {
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        switch (positional.get(0)) {
+            case "set":
+                if (positional.size() != 2) {
+                    System.err.println(USAGE);
+                    return 2;
+                }
+
+                double limit;
+                Budget.Period period;
+                try {
+                    limit = Double.parseDouble(positional.get(1));
+                    period = Budget.Period.valueOf(options.getOrDefault("period", "month").toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Not a valid limit or period: " + positional.get(1) + " "
+                            + options.get("period"));
+                    return 2;
+                }
+
+                if (!(limit > 0) || Double.isInfinite(limit)) {
+                    System.err.println("The limit must be a finite positive number: " + positional.get(1));
+                    return 2;
+                }
+
+                DatabaseConnection.initDatabase();
+
+                Budget budget = DataManager.setBudget(options.get("category"), period, limit);
+                if (budget == null) {
+                    return 1;
+                }
+                System.out.println("Budget " + budget.getId() + ": " + budget);
+                return 0;
+            case "list":
+                DatabaseConnection.initDatabase();
+
+                if (!DataManager.isDatabaseAvailable()) {
+                    System.err.println("The database is not available.");
+                    return 1;
+                }
+
+                for (Budget b : DataManager.getBudgets()) {
+                    System.out.printf("%d: %s, spent %.2f%n", b.getId(), b, DataManager.getBudgetSpent(b));
+                }
+                return 0;
+            case "remove":
+                int id;
+                try {
+                    id = Integer.parseInt(positional.size() == 2 ? positional.get(1) : "");
+                } catch (NumberFormatException n) {
+                    System.err.println(USAGE);
+                    return 2;
+                }
+
+                DatabaseConnection.initDatabase();
+                return DataManager.removeBudget(id) ? 0 : 1;
+            default:
+                System.err.println(USAGE);
+                return 2;
+        }
+    }
+
+    /**
+     * Sync the database with the spreadsheet.
+     *
+     * @return exit code of the command
+     */
+    private static int sync() {
+        DatabaseConnection.initDatabase();
+
+        return DataManager.sync() ? 0 : 1;
+    }
+
+    /**
+     * Print the current balance and the sum of the expenses matching the filters.
+     *
+     * @param options options of the command
+     * @return exit code of the command
+     */
+    private static int report(Map<String, String> options) {
+        DatabaseConnection.initDatabase();
+
+        if (!DataManager.isDatabaseAvailable()) {
+            System.err.println("The database is not available.");
+            return 1;
+        }
+
+        String category = options.get("category");
+        List<String> allOf = splitList(options.get("tags"));
+        List<String> anyOf = splitList(options.get("any-tags"));
+        String start = options.get("start");
+        String end = options.get("end");
+
+        Object balance = readBalance();
+        if (balance == null) {
+            System.err.println("Could not read the balance.");
+            return 1;
+        }
+
+        System.out.println("Balance: " + balance);
+        System.out.println("Sum: " + DataManager.sumDataByTags(category, allOf, anyOf, start, end));
+        return 0;
+    }
+
+    /**
+     * Read the balance of the last row.
+     *
+     * @return the balance, null if it could not be read
+     */
+    private static Object readBalance() {
+        Object[] last = DataManager.readLastData();
+        return last.length > 2 ? last[2] : null;
+    }
+
+    /**
+     * Import a bank export into the database.
+     *
+     * @param positional positional arguments
+     * @param options    options of the command
+     * @return exit code of the command
+     */
+    private static int importFile(List<String> positional, Map<String, String> options) {
+        if (positional.size() != 1) {
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        ExpenseImporter importer = new ExpenseImporter(
+                options.containsKey("ofx") ? ExpenseImporter.Format.OFX : ExpenseImporter.Format.CSV,
+                options.getOrDefault("delimiter", ",").charAt(0),
+                options.getOrDefault("date-format", "yyyy-MM-dd"),
+                options.containsKey("skip-header"));
+
+        DatabaseConnection.initDatabase();
+
+        try {
+            System.out.println(importer.importFile(positional.get(0)));
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error occured: {0}.", e.toString());
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Serve the database over HTTP until the process is stopped.
+     *
+     * @param options options of the command
+     * @return exit code of the command
+     */
+    private static int serve(Map<String, String> options) {
+        int port;
+        int threads;
+        try {
+            port = Integer.parseInt(options.getOrDefault("port", "8080"));
+            threads = Integer.parseInt(options.getOrDefault("threads", "16"));
+        } catch (NumberFormatException n) {
+            System.err.println("Not a valid number: " + n.getMessage());
+            return 2;
+        }
+
+        DatabaseConnection.initDatabase();
+
+        try {
+            ApiServer server = new ApiServer(port, threads);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(1)));
+            server.start();
+
+            Thread.currentThread().join();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Could not start the API server. {0}", e.toString());
+            return 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return 0;
+    }
+
+    /**
+     * Split the arguments of a command to positional arguments and options. Options start with "--",
+     * flags have no value.
+     *
+     * @param args       arguments of the command
+     * @param positional list to collect the positional arguments in
+     * @param options    map to collect the options in
+     */
+    private static void parseArguments(String[] args, List<String> positional, Map<String, String> options) {
+        Set<String> flags = new HashSet<>(Arrays.asList("ofx", "skip-header"));
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--") && args[i].length() > 2) {
+                String name = args[i].substring(2);
+
+                if (flags.contains(name)) {
+                    options.put(name, "");
+                } else if (i + 1 < args.length) {
+                    options.put(name, args[++i]);
+                } else {
+                    throw new IllegalArgumentException("Missing value of --" + name);
+                }
+            } else {
+                positional.add(args[i]);
+            }
+        }
+    }
+
+    /**
+     * Helper function to split a comma separated list.
+     *
+     * @param list the list, may be null
+     * @return the elements of the list, null if the list is null
+     */
+    private static List<String> splitList(String list) {
+        return list != null ? Arrays.asList(list.split("\\s*,\\s*")) : null;
+    }
+}
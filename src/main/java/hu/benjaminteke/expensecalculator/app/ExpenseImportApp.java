@@ -0,0 +1,22 @@
+package hu.benjaminteke.expensecalculator.app;
+
+/**
+ * Headless entry point for importing bank exports, without starting the GUI.
+ * Same as the import command of {@link ExpenseCalculatorCli}.
+ * <p>
+ * Usage: {@code ExpenseImportApp [--ofx] [--delimiter ;] [--date-format yyyy-MM-dd] [--skip-header] file}
+ */
+public class ExpenseImportApp {
+
+    /**
+     * Main method
+     * @param args command line arguments
+     */
+    public static void main(String[] args) {
+        String[] commandArgs = new String[args.length + 1];
+        commandArgs[0] = "import";
+        System.arraycopy(args, 0, commandArgs, 1, args.length);
+
+        System.exit(ExpenseCalculatorCli.run(commandArgs));
+    }
+}
@@ -0,0 +1,203 @@
+package hu.benjaminteke.expensecalculator.datamodel;
+
+import com.j256.ormlite.field.DataType;
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+import java.io.*;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compressed segment of the cold tier, holding the archived rows of one month with their tags. Besides the rows
+ * it records the id and time range they span, the balance checkpoints before the first and after the last
+ * row and the last row itself, so that queries can skip the segment without decompressing it.
+ */
+@DatabaseTable(tableName = "expense_archive")
+class ArchiveSegment {
+
+    // for QueryBuilder to be able to find the fields
+    static final String MONTH_FIELD_NAME = "month";
+    static final String FIRST_ID_FIELD_NAME = "firstId";
+    static final String LAST_ID_FIELD_NAME = "lastId";
+    static final String FIRST_TIME_FIELD_NAME = "firstTime";
+    static final String LAST_TIME_FIELD_NAME = "lastTime";
+    static final String CLOSING_TIME_FIELD_NAME = "closingTime";
+    static final String CLOSING_EXPENSE_FIELD_NAME = "closingExpense";
+
+    @DatabaseField(generatedId = true)
+    private int id;
+
+    @DatabaseField(columnName = MONTH_FIELD_NAME, unique = true)
+    private String month;
+
+    @DatabaseField(columnName = FIRST_ID_FIELD_NAME)
+    private int firstId;
+
+    @DatabaseField(columnName = LAST_ID_FIELD_NAME)
+    private int lastId;
+
+    @DatabaseField(columnName = FIRST_TIME_FIELD_NAME)
+    private String firstTime;
+
+    @DatabaseField(columnName = LAST_TIME_FIELD_NAME)
+    private String lastTime;
+
+    @DatabaseField
+    private int rowCount;
+
+    @DatabaseField
+    private Double openingBalance;
+
+    @DatabaseField
+    private Double closingBalance;
+
+    @DatabaseField(columnName = CLOSING_TIME_FIELD_NAME)
+    private String closingTime;
+
+    @DatabaseField(columnName = CLOSING_EXPENSE_FIELD_NAME)
+    private Double closingExpense;
+
+    @DatabaseField(dataType = DataType.BYTE_ARRAY)
+    private byte[] rows;
+
+    ArchiveSegment() {
+        // all persisted classes must define a no-arg constructor with at least package visibility
+    }
+
+    /**
+     * Create or replace the content of the segment.
+     *
+     * @param month    the month of the rows in the yyyy/MM format
+     * @param expenses the rows of the month with their tags, in id order
+     * @throws SQLException throws an exception if the rows can not be encoded
+     */
+    void setRows(String month, List<Expense> expenses) throws SQLException {
+        Expense first = expenses.get(0);
+        Expense last = expenses.get(expenses.size() - 1);
+
+        this.month = month;
+        this.firstId = first.getId();
+        this.lastId = last.getId();
+        this.rowCount = expenses.size();
+        this.openingBalance = first.getBalance() - first.getExpense();
+        this.closingBalance = last.getBalance();
+        this.closingTime = last.getTime();
+        this.closingExpense = last.getExpense();
+        this.firstTime = first.getTime();
+        this.lastTime = first.getTime();
+
+        for (Expense expense : expenses) {
+            if (expense.getTime().compareTo(firstTime) < 0) {
+                firstTime = expense.getTime();
+            }
+            if (expense.getTime().compareTo(lastTime) > 0) {
+                lastTime = expense.getTime();
+            }
+        }
+
+        this.rows = encode(expenses);
+    }
+
+    /**
+     * Decompress the rows of the segment.
+     *
+     * @return the rows with their tags, in id order
+     * @throws SQLException throws an exception if the segment is corrupted
+     */
+    List<Expense> getRows() throws SQLException {
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(rows)))) {
+            int count = in.readInt();
+            List<Expense> expenses = new ArrayList<>(count);
+
+            for (int i = 0; i < count; i++) {
+                Expense expense = new Expense(in.readInt(), in.readUTF(), in.readDouble(), in.readDouble(),
+                        in.readBoolean() ? in.readUTF() : null);
+
+                int tagCount = in.readInt();
+                if (tagCount > 0) {
+                    List<String> tags = new ArrayList<>(tagCount);
+                    for (int t = 0; t < tagCount; t++) {
+                        tags.add(in.readUTF());
+                    }
+                    expense.setTags(tags);
+                }
+                expenses.add(expense);
+            }
+            return expenses;
+        } catch (IOException e) {
+            throw new SQLException("Could not decompress the archive segment of " + month, e);
+        }
+    }
+
+    int getFirstId() {
+        return firstId;
+    }
+
+    int getLastId() {
+        return lastId;
+    }
+
+    /**
+     * Get the last row of the segment from its checkpoint, without its id, category and tags.
+     *
+     * @return the time, the expense and the balance of the last row
+     */
+    Expense getClosingRow() {
+        return new Expense(closingTime, closingExpense, closingBalance);
+    }
+
+    /**
+     * Fill the checkpoint of the last row by decompressing the rows, for segments written before it was stored.
+     *
+     * @throws SQLException throws an exception if the segment is corrupted
+     */
+    void readClosingRow() throws SQLException {
+        List<Expense> expenses = getRows();
+        Expense last = expenses.get(expenses.size() - 1);
+
+        this.closingTime = last.getTime();
+        this.closingExpense = last.getExpense();
+    }
+
+    /**
+     * Helper function to serialize and compress rows.
+     *
+     * @param expenses the rows
+     * @return the compressed rows
+     * @throws SQLException throws an exception if the rows can not be encoded
+     */
+    private static byte[] encode(List<Expense> expenses) throws SQLException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            out.writeInt(expenses.size());
+
+            for (Expense expense : expenses) {
+                out.writeInt(expense.getId());
+                out.writeUTF(expense.getTime());
+                out.writeDouble(expense.getExpense());
+                out.writeDouble(expense.getBalance());
+                out.writeBoolean(expense.getCategory() != null);
+                if (expense.getCategory() != null) {
+                    out.writeUTF(expense.getCategory());
+                }
+
+                Collection<String> tags = expense.getTags();
+                out.writeInt(tags != null ? tags.size() : 0);
+                if (tags != null) {
+                    for (String tag : tags) {
+                        out.writeUTF(tag);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new SQLException("Could not compress the archive segment of " + expenses.get(0).getTime(), e);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,113 @@
+package hu.benjaminteke.expensecalculator.datamodel;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spending limit of a period, for every expense or for one category.
+ */
+@DatabaseTable(tableName = "budgets")
+public class Budget {
+
+    /**
+     * Length of the sliding window a budget is evaluated over, split into buckets.
+     */
+    public enum Period {
+        DAY(TimeUnit.HOURS.toMillis(1), 24),
+        WEEK(TimeUnit.DAYS.toMillis(1), 7),
+        MONTH(TimeUnit.DAYS.toMillis(1), 30);
+
+        private final long bucketMillis;
+        private final int buckets;
+
+        Period(long bucketMillis, int buckets) {
+            this.bucketMillis = bucketMillis;
+            this.buckets = buckets;
+        }
+
+        long getBucketMillis() {
+            return bucketMillis;
+        }
+
+        int getBuckets() {
+            return buckets;
+        }
+
+        long getMillis() {
+            return bucketMillis * buckets;
+        }
+    }
+
+    @DatabaseField(generatedId = true)
+    private int id;
+
+    @DatabaseField
+    private String category;
+
+    @DatabaseField
+    private Period period;
+
+    @DatabaseField(columnName = "spendLimit")
+    private double limit;
+
+    Budget() {
+        // all persisted classes must define a no-arg constructor with at least package visibility
+    }
+
+    /**
+     * Create a budget.
+     *
+     * @param category category of the counted expenses, null to count every expense
+     * @param period   period of the sliding window
+     * @param limit    the most that may be spent in the period, positive
+     * @throws IllegalArgumentException throws an error if the limit is not a finite positive number
+     */
+    public Budget(String category, Period period, double limit) {
+        if (!(limit > 0) || Double.isInfinite(limit)) {
+            throw new IllegalArgumentException("The limit of a budget must be a finite positive number: " + limit);
+        }
+        this.category = category;
+        this.period = period;
+        this.limit = limit;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Get the category of the budget.
+     *
+     * @return the category, null if every expense counts
+     */
+    public String getCategory() {
+        return category;
+    }
+
+    public Period getPeriod() {
+        return period;
+    }
+
+    public double getLimit() {
+        return limit;
+    }
+
+    /**
+     * Check whether an expense of a category counts against the budget.
+     *
+     * @param expenseCategory category of the expense, may be null
+     * @return true if it counts
+     */
+    boolean matches(String expenseCategory) {
+        return category == null
+                || Objects.equals(Expense.normalizeLabel(category), Expense.normalizeLabel(expenseCategory));
+    }
+
+    @Override
+    public String toString() {
+        return period.name().toLowerCase() + " budget of " + limit + (category != null ? " for " + category : "");
+    }
+}
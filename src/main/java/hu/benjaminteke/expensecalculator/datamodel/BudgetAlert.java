@@ -0,0 +1,59 @@
+package hu.benjaminteke.expensecalculator.datamodel;
+
+/**
+ * Raised when the spending of a budget crosses the warning ratio or the limit.
+ */
+public class BudgetAlert {
+
+    /**
+     * Severity of an alert.
+     */
+    public enum Level {
+        /**
+         * The spending is below the warning ratio, never raised.
+         */
+        NONE,
+        /**
+         * The spending reached the warning ratio of the limit.
+         */
+        WARNING,
+        /**
+         * The spending reached the limit.
+         */
+        EXCEEDED
+    }
+
+    private final Budget budget;
+    private final Level level;
+    private final double spent;
+
+    BudgetAlert(Budget budget, Level level, double spent) {
+        this.budget = budget;
+        this.level = level;
+        this.spent = spent;
+    }
+
+    public Budget getBudget() {
+        return budget;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Get the spending of the budget's sliding window when the alert was raised.
+     *
+     * @return the spent amount, positive
+     */
+    public double getSpent() {
+        return spent;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: spent %.2f of the %s (%.0f%%).",
+                level == Level.EXCEEDED ? "Budget exceeded" : "Budget warning",
+                spent, budget, spent * 100 / budget.getLimit());
+    }
+}
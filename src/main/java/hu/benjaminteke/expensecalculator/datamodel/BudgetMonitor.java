@@ -0,0 +1,199 @@
+package hu.benjaminteke.expensecalculator.datamodel;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Evaluates the budgets on every write. Each budget keeps the spending of its period in a sliding window,
+ * updated from the change feed, so a write costs the same however long the history is. Only the last
+ * period is read from the database, when the budgets are loaded.
+ * <p>
+ * An alert is raised when the spending of a budget rises to the warning ratio or to the limit. It is raised
+ * again only after the spending fell back below that level as the window slid on.
+ */
+class BudgetMonitor {
+    private final static Logger LOGGER = Logger.getLogger(BudgetMonitor.class.getName());
+
+    /**
+     * Ratio of the limit from which a warning is raised.
+     */
+    private final static double WARNING_RATIO = 0.8;
+
+    private static final BudgetMonitor INSTANCE = new BudgetMonitor();
+
+    /**
+     * Date time format to convert between string and timestamp, used under the lock of the monitor.
+     */
+    private final SimpleDateFormat dtf = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+
+    private final List<Tracker> trackers = new ArrayList<>();
+
+    private final List<Consumer<BudgetAlert>> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Get the monitor of the database.
+     *
+     * @return the monitor
+     */
+    static BudgetMonitor getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Replace the budgets and fill their windows from the rows of the last period, without raising alerts.
+     *
+     * @param budgets the budgets
+     * @param recent  the rows of at least the longest period of the budgets
+     */
+    synchronized void load(List<Budget> budgets, List<Expense> recent) {
+        trackers.clear();
+        for (Budget budget : budgets) {
+            trackers.add(new Tracker(budget));
+        }
+
+        for (Expense expense : recent) {
+            add(expense.getTime(), expense.getExpense(), expense.getCategory(), false);
+        }
+
+        LOGGER.log(Level.FINE, "Loaded {0} budgets.", budgets.size());
+    }
+
+    /**
+     * Get the earliest time the windows of the budgets may reach back to.
+     *
+     * @param budgets the budgets
+     * @param now     the current time
+     * @return the formatted start time of the longest period
+     */
+    synchronized String windowStart(List<Budget> budgets, long now) {
+        long longest = 0;
+        for (Budget budget : budgets) {
+            longest = Math.max(longest, budget.getPeriod().getMillis());
+        }
+        return dtf.format(new Date(now - longest));
+    }
+
+    /**
+     * Add the written rows of the change feed to the windows and raise the alerts. On a reset the budgets and
+     * their windows are reloaded from the database, which takes the write lock of the database. So this has to
+     * be subscribed with {@code Runnable::run}, to run on the writing thread that already holds the lock,
+     * never through an executor of its own, where the reload would wait for the writers or fall behind them.
+     *
+     * @param events the published changes
+     */
+    void changed(List<ChangeEvent> events) {
+        for (ChangeEvent event : events) {
+            if (event.getType() == ChangeEvent.Type.RESET) {
+                DatabaseConnection.loadBudgets();
+            } else if (event.getType() != ChangeEvent.Type.ARCHIVED) {
+                synchronized (this) {
+                    add((String) event.getRow()[0], (Double) event.getRow()[1], event.getCategory(), true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the budgets.
+     *
+     * @return the budgets being monitored
+     */
+    synchronized List<Budget> getBudgets() {
+        List<Budget> budgets = new ArrayList<>(trackers.size());
+        for (Tracker tracker : trackers) {
+            budgets.add(tracker.budget);
+        }
+        return budgets;
+    }
+
+    /**
+     * Get the spending of a budget in the period ending now.
+     *
+     * @param id  id of the budget
+     * @param now the current time
+     * @return the spent amount, 0 if there is no such budget
+     */
+    synchronized double getSpent(int id, long now) {
+        for (Tracker tracker : trackers) {
+            if (tracker.budget.getId() == id) {
+                return tracker.window.total(now);
+            }
+        }
+        return 0.0;
+    }
+
+    /**
+     * Receive the alerts.
+     *
+     * @param executor runs the listener, e.g. SwingUtilities::invokeLater
+     * @param listener receives the alerts
+     */
+    void addListener(Executor executor, Consumer<BudgetAlert> listener) {
+        listeners.add(alert -> executor.execute(() -> listener.accept(alert)));
+    }
+
+    /**
+     * Add a row to the windows of the matching budgets. Only spending, the negative expenses, counts.
+     *
+     * @param time     formatted time of the expense
+     * @param expense  value of the expense
+     * @param category category of the expense, may be null
+     * @param alert    whether to raise the alerts
+     */
+    private void add(String time, Double expense, String category, boolean alert) {
+        if (trackers.isEmpty() || time == null || expense == null || expense >= 0) {
+            return;
+        }
+
+        long millis;
+        try {
+            millis = dtf.parse(time).getTime();
+        } catch (ParseException e) {
+            return;
+        }
+
+        long now = Math.max(millis, System.currentTimeMillis());
+
+        for (Tracker tracker : trackers) {
+            if (!tracker.budget.matches(category)) {
+                continue;
+            }
+
+            tracker.window.add(millis, -expense);
+            double spent = tracker.window.total(now);
+            BudgetAlert.Level level = spent >= tracker.budget.getLimit() ? BudgetAlert.Level.EXCEEDED
+                    : spent >= tracker.budget.getLimit() * WARNING_RATIO ? BudgetAlert.Level.WARNING
+                    : BudgetAlert.Level.NONE;
+
+            if (alert && level.compareTo(tracker.level) > 0) {
+                BudgetAlert budgetAlert = new BudgetAlert(tracker.budget, level, spent);
+                for (Consumer<BudgetAlert> listener : listeners) {
+                    listener.accept(budgetAlert);
+                }
+            }
+            tracker.level = level;
+        }
+    }
+
+    /**
+     * Window and last alert level of a budget.
+     */
+    private static final class Tracker {
+        private final Budget budget;
+        private final SlidingWindow window;
+        private BudgetAlert.Level level = BudgetAlert.Level.NONE;
+
+        Tracker(Budget budget) {
+            this.budget = budget;
+            this.window = new SlidingWindow(budget.getPeriod().getBucketMillis(), budget.getPeriod().getBuckets());
+        }
+    }
+}
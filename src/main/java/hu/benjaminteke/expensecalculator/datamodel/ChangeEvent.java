@@ -0,0 +1,88 @@
+package hu.benjaminteke.expensecalculator.datamodel;
+
+import java.util.Collection;
+
+/**
+ * A change of the ledger, published by the {@link ChangeFeed} in commit order.
+ */
+public class ChangeEvent {
+
+    /**
+     * Kinds of changes.
+     */
+    public enum Type {
+        /**
+         * A row was written by the application.
+         */
+        APPENDED,
+        /**
+         * A row was brought in from the spreadsheet by a sync.
+         */
+        SYNCED,
+        /**
+         * The rows before the time of the event moved to the archive, they are no longer recent.
+         */
+        ARCHIVED,
+        /**
+         * The subscriber missed events because its queue was full, everything derived from the earlier
+         * events has to be reloaded.
+         */
+        RESET
+    }
+
+    private final Type type;
+    private final long sequence;
+    private final int id;
+    private final Object[] row;
+    private final String category;
+    private final Collection<String> tags;
+
+    ChangeEvent(Type type, long sequence, int id, Object[] row, String category, Collection<String> tags) {
+        this.type = type;
+        this.sequence = sequence;
+        this.id = id;
+        this.row = row;
+        this.category = category;
+        this.tags = tags;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Get the sequence number, increasing by one with every published event.
+     *
+     * @return the sequence number
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Get the id of the changed row.
+     *
+     * @return the id, 0 for archive and reset events
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Get the changed row.
+     *
+     * @return the time, the expense and the balance, or only the cutoff time for archive events,
+     * must not be modified
+     */
+    public Object[] getRow() {
+        return row;
+    }
+
+    public String getCategory() {
+        return category;
+    }
+
+    public Collection<String> getTags() {
+        return tags;
+    }
+}
@@ -0,0 +1,156 @@
+package hu.benjaminteke.expensecalculator.datamodel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Feed of the ledger changes. Every write publishes its rows here after the commit, numbered in commit order.
+ * <p>
+ * Publishing never blocks the writer. Each subscriber has its own bounded queue and an executor delivering the
+ * queued events in batches, one batch at a time. A subscriber that can not keep up loses the events that do
+ * not fit, and instead gets a {@link ChangeEvent.Type#RESET} event, after which it has to reload.
+ */
+public class ChangeFeed {
+    private final static Logger LOGGER = Logger.getLogger(ChangeFeed.class.getName());
+
+    private static final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    private static long sequence;
+
+    /**
+     * Subscribe to the changes published from now on.
+     *
+     * @param capacity number of events queued for the subscriber before it has to reset
+     * @param executor runs the deliveries, e.g. SwingUtilities::invokeLater, or Runnable::run to deliver
+     *                 on the publishing thread
+     * @param listener receives the events in batches, in sequence order
+     * @return the subscription
+     */
+    static Subscription subscribe(int capacity, Executor executor, Consumer<List<ChangeEvent>> listener) {
+        Subscription subscription = new Subscription(capacity, executor, listener);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Publish written rows.
+     *
+     * @param type     APPENDED or SYNCED
+     * @param expenses the written rows, in commit order
+     */
+    static void publish(ChangeEvent.Type type, List<Expense> expenses) {
+        List<ChangeEvent> events = new ArrayList<>(expenses.size());
+
+        synchronized (ChangeFeed.class) {
+            for (Expense expense : expenses) {
+                events.add(new ChangeEvent(type, ++sequence, expense.getId(), expense.getObject(),
+                        expense.getCategory(), expense.getTags()));
+            }
+        }
+        deliver(events);
+    }
+
+    /**
+     * Publish that the rows before a time moved to the archive.
+     *
+     * @param cutoffTime the archived rows were before this time
+     */
+    static void publishArchived(String cutoffTime) {
+        ChangeEvent event;
+
+        synchronized (ChangeFeed.class) {
+            event = new ChangeEvent(ChangeEvent.Type.ARCHIVED, ++sequence, 0, new Object[]{cutoffTime}, null, null);
+        }
+        deliver(Collections.singletonList(event));
+    }
+
+    private static void deliver(List<ChangeEvent> events) {
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(events);
+        }
+    }
+
+    /**
+     * Get the sequence of the last published change.
+     *
+     * @return the sequence, 0 if nothing was published
+     */
+    static synchronized long currentSequence() {
+        return sequence;
+    }
+
+    /**
+     * A subscriber of the feed.
+     */
+    public static class Subscription {
+        private final BlockingQueue<ChangeEvent> queue;
+        private final Executor executor;
+        private final Consumer<List<ChangeEvent>> listener;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicBoolean overflowed = new AtomicBoolean();
+
+        private Subscription(int capacity, Executor executor, Consumer<List<ChangeEvent>> listener) {
+            this.queue = new LinkedBlockingQueue<>(capacity);
+            this.executor = executor;
+            this.listener = listener;
+        }
+
+        /**
+         * Stop receiving events. Events already queued are dropped.
+         */
+        public void cancel() {
+            subscriptions.remove(this);
+            queue.clear();
+        }
+
+        /**
+         * Queue events without blocking and schedule a delivery unless one is pending.
+         *
+         * @param events the events to queue
+         */
+        private void offer(List<ChangeEvent> events) {
+            for (ChangeEvent event : events) {
+                if (!queue.offer(event)) {
+                    overflowed.set(true);
+                }
+            }
+
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this::drain);
+            }
+        }
+
+        /**
+         * Deliver the queued events, or a reset if some were lost.
+         */
+        private void drain() {
+            scheduled.set(false);
+            List<ChangeEvent> events = new ArrayList<>(queue.size());
+
+            if (overflowed.getAndSet(false)) {
+                queue.clear();
+                events.add(new ChangeEvent(ChangeEvent.Type.RESET, currentSequence(), 0, null, null, null));
+                LOGGER.log(Level.WARNING, "A change feed subscriber fell behind and is reset.");
+            } else {
+                queue.drainTo(events);
+            }
+
+            if (!events.isEmpty()) {
+                try {
+                    listener.accept(events);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.SEVERE, "A change feed subscriber failed. {0}", e.toString());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package hu.benjaminteke.expensecalculator.datamodel;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Read-through cache in front of the database and the spreadsheet. It holds the last row of each source and
+ * the recently queried time ranges, evicting the least recently used ranges above a row count limit.
+ * <p>
+ * Writes, received from the change feed, update the cached last row and invalidate the ranges containing the
+ * written times. Every write bumps a generation counter, and a value loaded while a write happened is not
+ * cached, so a slow read can not put a stale value back after the write.
+ * <p>
+ * The change feed only carries the writes of this process. Other processes writing to the same database file,
+ * e.g. the command line next to the GUI, are detected by the data version of the database, checked before the
+ * cached database values are served.
+ */
+class DataCache {
+
+    /**
+     * Data sources of the cached values.
+     */
+    enum Source {
+        DATABASE, SPREADSHEET
+    }
+
+    /**
+     * Maximum number of rows held by the cached ranges.
+     */
+    private final static long MAX_CACHED_ROWS = 100_000;
+
+    private static final Cache<Source, Object[]> lastRows = CacheBuilder.newBuilder()
+            .recordStats()
+            .build();
+
+    private static final Cache<RangeKey, Object[][]> ranges = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_CACHED_ROWS)
+            .weigher((RangeKey key, Object[][] rows) -> rows.length + 1)
+            .recordStats()
+            .build();
+
+    private static long generation;
+
+    /**
+     * Data version of the database when the cached database values were checked last.
+     */
+    private static long dataVersion;
+
+    /**
+     * Get the last row of a source, loading it on a miss.
+     *
+     * @param source the data source
+     * @param loader loads the last row from the source
+     * @return the last row, must not be modified
+     * @throws SQLException throws an exception if the loader failed with an SQL error
+     * @throws IOException  throws an error if the loader failed with an IO error
+     */
+    static Object[] getLastRow(Source source, Loader<Object[]> loader) throws SQLException, IOException {
+        Object[] cached = lastRows.getIfPresent(source);
+        if (cached != null) {
+            return cached;
+        }
+
+        long loadGeneration = currentGeneration();
+        Object[] loaded = loader.load();
+
+        synchronized (DataCache.class) {
+            if (generation == loadGeneration) {
+                lastRows.put(source, loaded);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Get the database rows between two times, loading them on a miss.
+     *
+     * @param startTime start time of the range, may be empty
+     * @param endTime   end time of the range, may be empty
+     * @param loader    loads the range from the database
+     * @return the rows of the range, must not be modified
+     * @throws SQLException throws an exception if the loader failed with an SQL error
+     * @throws IOException  throws an error if the loader failed with an IO error
+     */
+    static Object[][] getRange(String startTime, String endTime, Loader<Object[][]> loader)
+            throws SQLException, IOException {
+        RangeKey key = new RangeKey(startTime, endTime);
+        Object[][] cached = ranges.getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        long loadGeneration = currentGeneration();
+        Object[][] loaded = loader.load();
+
+        synchronized (DataCache.class) {
+            if (generation == loadGeneration) {
+                ranges.put(key, loaded);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Apply the changes of the database published on the change feed. A reset drops everything, archiving
+     * changes nothing, as archived rows are still returned by the cached queries.
+     *
+     * @param events the published changes
+     */
+    static void changed(List<ChangeEvent> events) {
+        Object[] lastRow = null;
+        String firstTime = null;
+        String lastTime = null;
+
+        for (ChangeEvent event : events) {
+            if (event.getType() == ChangeEvent.Type.RESET) {
+                invalidateAll();
+            } else if (event.getType() != ChangeEvent.Type.ARCHIVED) {
+                lastRow = event.getRow();
+                String time = (String) lastRow[0];
+
+                if (firstTime == null || time.compareTo(firstTime) < 0) {
+                    firstTime = time;
+                }
+                if (lastTime == null || time.compareTo(lastTime) > 0) {
+                    lastTime = time;
+                }
+            }
+        }
+
+        if (lastRow != null) {
+            databaseWritten(lastRow, firstTime, lastTime);
+        }
+    }
+
+    /**
+     * Record rows written to the database. The last one becomes the cached last row, and the ranges
+     * overlapping the written times are invalidated.
+     *
+     * @param lastRow   the last written row
+     * @param firstTime the earliest written time
+     * @param lastTime  the latest written time
+     */
+    private static synchronized void databaseWritten(Object[] lastRow, String firstTime, String lastTime) {
+        generation++;
+        lastRows.put(Source.DATABASE, lastRow);
+
+        for (RangeKey key : ranges.asMap().keySet()) {
+            if (key.overlaps(firstTime, lastTime)) {
+                ranges.invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * Drop the cached database values if another process committed to the database since the last check.
+     *
+     * @param version the current data version of the database
+     */
+    static synchronized void checkDataVersion(long version) {
+        if (version != dataVersion) {
+            generation++;
+            lastRows.invalidate(Source.DATABASE);
+            ranges.invalidateAll();
+            dataVersion = version;
+        }
+    }
+
+    /**
+     * Record a write to the spreadsheet, the balance is computed there, so the cached last row is dropped.
+     */
+    static synchronized void spreadsheetWritten() {
+        generation++;
+        lastRows.invalidate(Source.SPREADSHEET);
+    }
+
+    /**
+     * Drop everything, e.g. before a sync which may bring in changes made outside of the application.
+     */
+    static synchronized void invalidateAll() {
+        generation++;
+        lastRows.invalidateAll();
+        ranges.invalidateAll();
+    }
+
+    /**
+     * Get the hit and miss statistics of the cache.
+     *
+     * @return the statistics of the last rows and the ranges together
+     */
+    static CacheStats stats() {
+        return lastRows.stats().plus(ranges.stats());
+    }
+
+    private static synchronized long currentGeneration() {
+        return generation;
+    }
+
+    /**
+     * Loads a value from a data source.
+     *
+     * @param <T> type of the value
+     */
+    interface Loader<T> {
+        T load() throws SQLException, IOException;
+    }
+
+    /**
+     * Key of a cached range. The stored time format sorts lexicographically in time order, empty bounds are open.
+     */
+    private static final class RangeKey {
+        private final String start;
+        private final String end;
+
+        RangeKey(String start, String end) {
+            this.start = start != null ? start : "";
+            this.end = end != null ? end : "";
+        }
+
+        /**
+         * Check whether the range may contain a time between the parameters.
+         *
+         * @param firstTime the earliest time
+         * @param lastTime  the latest time
+         * @return true if they overlap
+         */
+        boolean overlaps(String firstTime, String lastTime) {
+            return (start.isEmpty() || lastTime.compareTo(start) >= 0)
+                    && (end.isEmpty() || firstTime.compareTo(end) < 0);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            RangeKey rangeKey = (RangeKey) o;
+            return start.equals(rangeKey.start) && end.equals(rangeKey.end);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(start, end);
+        }
+    }
+}
@@ -1,15 +1,17 @@
 package hu.benjaminteke.expensecalculator.datamodel;
 
-import com.google.common.collect.Lists;
-import com.google.common.collect.MapDifference;
-import com.google.common.collect.Maps;
+import com.google.common.cache.CacheStats;
 
 import java.io.IOException;
 import java.sql.SQLException;
-import java.sql.Timestamp;
-import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,25 +19,62 @@ public class DataManager {
     private final static Logger LOGGER = Logger.getLogger(DataManager.class.getName());
 
     /**
-     * Date time format to convert between string and timestamp.
+     * Date time format to convert between string and timestamp. Not thread-safe, it is used under its own lock.
      */
     private static SimpleDateFormat dtf = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
 
+    /**
+     * Number of changes waiting to be mirrored to the spreadsheet before the mirror gives up on them and
+     * leaves them to the next sync.
+     */
+    private final static int SHEET_MIRROR_CAPACITY = 4096;
+
+    private static ChangeFeed.Subscription sheetMirror;
+
+    /**
+     * Held while the spreadsheet is appended to, so that the sheet mirror and a sync never run at the same time.
+     */
+    private static final Object sheetLock = new Object();
+
+    /**
+     * Sequence of the last change already in the spreadsheet when a sync finished, the mirror skips the changes
+     * up to it. Guarded by the sheet lock.
+     */
+    private static long sheetSyncedThrough;
+
     /**
      * Write data to the database and to the spreadsheet (if any of them is available).
      *
      * @param expense expense to write
      */
     public static void writeData(Double expense) {
-        Date now = new Date();
-        String timeString = dtf.format(now);
+        writeData(expense, null, null);
+    }
+
+    /**
+     * Write categorized and tagged data to the database and to the spreadsheet (if any of them is available).
+     * The spreadsheet only stores the time, the value and the balance. If the sheet mirror runs, it writes
+     * to the spreadsheet in the background.
+     *
+     * @param expense  expense to write
+     * @param category category of the expense, may be null
+     * @param tags     free-form tags of the expense, may be null
+     */
+    public static void writeData(Double expense, String category, Collection<String> tags) {
+        String timeString = formatNow();
 
         try {
             if (DatabaseConnection.isConnected()) {
-                DatabaseConnection.writeOne(timeString, expense);
+                DatabaseConnection.writeOne(timeString, expense, category, tags);
+
+                if (isSheetMirrored()) {
+                    return;
+                }
             }
 
-            SheetManager.writeOne(timeString, expense);
+            synchronized (sheetLock) {
+                SheetManager.writeOne(timeString, expense);
+            }
 
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, "Could not write to spreadsheet. {0}", e.toString());
@@ -44,6 +83,243 @@ public class DataManager {
         }
     }
 
+    /**
+     * Subscribe to the changes of the database. Events are numbered in commit order and queued for the
+     * subscriber without ever blocking the writers. If more than capacity events are waiting, the subscriber
+     * gets a single RESET event instead and has to reload.
+     *
+     * @param capacity number of events queued for the subscriber
+     * @param executor runs the deliveries one at a time, e.g. SwingUtilities::invokeLater
+     * @param listener receives the events in batches, in sequence order
+     * @return the subscription, to cancel it
+     */
+    public static ChangeFeed.Subscription subscribe(int capacity, Executor executor,
+                                                    Consumer<List<ChangeEvent>> listener) {
+        return ChangeFeed.subscribe(capacity, executor, listener);
+    }
+
+    /**
+     * Start mirroring the rows written to the database to the spreadsheet, on a background thread. Rows
+     * coming from a sync are not mirrored back. If the spreadsheet can not be written, the rows are left to the
+     * next sync. If the mirror falls behind, it syncs to append the rows it lost.
+     */
+    public static synchronized void startSheetMirror() {
+        if (sheetMirror != null) {
+            return;
+        }
+
+        ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sheet-mirror");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sheetMirror = ChangeFeed.subscribe(SHEET_MIRROR_CAPACITY, executor, DataManager::mirrorToSheet);
+    }
+
+    private static synchronized boolean isSheetMirrored() {
+        return sheetMirror != null;
+    }
+
+    /**
+     * Append the rows written by the application to the spreadsheet, skipping the ones a sync already appended.
+     * If the mirror fell behind and lost rows, a sync appends them.
+     *
+     * @param events the published changes
+     */
+    private static void mirrorToSheet(List<ChangeEvent> events) {
+        List<Object[]> rows = new ArrayList<>(events.size());
+        boolean reset = false;
+
+        synchronized (sheetLock) {
+            for (ChangeEvent event : events) {
+                if (event.getType() == ChangeEvent.Type.RESET) {
+                    reset = true;
+                } else if (event.getType() == ChangeEvent.Type.APPENDED && event.getSequence() > sheetSyncedThrough) {
+                    rows.add(event.getRow());
+                }
+            }
+
+            if (!reset) {
+                try {
+                    SheetManager.writeRows(rows);
+                } catch (IOException e) {
+                    LOGGER.log(Level.SEVERE, "Could not mirror to spreadsheet, the next sync catches up. {0}",
+                            e.toString());
+                }
+                return;
+            }
+        }
+
+        LOGGER.log(Level.WARNING, "The sheet mirror fell behind, syncing the spreadsheet.");
+        sync();
+    }
+
+    /**
+     * Add a budget, evaluated from now on with every write.
+     *
+     * @param category category of the counted expenses, null to count every expense
+     * @param period   period of the sliding window
+     * @param limit    the most that may be spent in the period, positive
+     * @return the stored budget, null if failed.
+     * @throws IllegalArgumentException throws an error if the limit is not a finite positive number
+     */
+    public static Budget setBudget(String category, Budget.Period period, double limit) {
+        Budget budget = new Budget(category, period, limit);
+
+        try {
+            DatabaseConnection.createBudget(budget);
+            return budget;
+        } catch (SQLException s) {
+            LOGGER.log(Level.SEVERE, "Could not write to DB. {0}", s.toString());
+        }
+        return null;
+    }
+
+    /**
+     * Remove a budget.
+     *
+     * @param id id of the budget
+     * @return false if failed or there is no such budget, true if successful.
+     */
+    public static boolean removeBudget(int id) {
+        try {
+            return DatabaseConnection.deleteBudget(id);
+        } catch (SQLException s) {
+            LOGGER.log(Level.SEVERE, "Could not write to DB. {0}", s.toString());
+        }
+        return false;
+    }
+
+    /**
+     * Get the budgets.
+     *
+     * @return the budgets
+     */
+    public static List<Budget> getBudgets() {
+        return BudgetMonitor.getInstance().getBudgets();
+    }
+
+    /**
+     * Get the spending of a budget in its period ending now, without reading the database.
+     *
+     * @param budget the budget
+     * @return the spent amount, positive
+     */
+    public static double getBudgetSpent(Budget budget) {
+        return BudgetMonitor.getInstance().getSpent(budget.getId(), System.currentTimeMillis());
+    }
+
+    /**
+     * Receive the alerts raised when the spending of a budget reaches its warning ratio or its limit.
+     *
+     * @param executor runs the listener, e.g. SwingUtilities::invokeLater, writes are not held up by it
+     *                 unless it runs the listener directly
+     * @param listener receives the alerts
+     */
+    public static void addBudgetListener(Executor executor, Consumer<BudgetAlert> listener) {
+        BudgetMonitor.getInstance().addListener(executor, listener);
+    }
+
+    /**
+     * Write categorized and tagged data to the database only. The spreadsheet catches up on the next sync.
+     *
+     * @param expense  expense to write
+     * @param category category of the expense, may be null
+     * @param tags     free-form tags of the expense, may be null
+     * @return false if failed, true if successful.
+     */
+    public static boolean writeLocalData(Double expense, String category, Collection<String> tags) {
+        return writeLocalData(expense, category, tags, null);
+    }
+
+    /**
+     * Write categorized and tagged data with an idempotency key to the database only. Writing the same key
+     * again succeeds without writing the expense twice.
+     *
+     * @param expense  expense to write
+     * @param category category of the expense, may be null
+     * @param tags     free-form tags of the expense, may be null
+     * @param key      idempotency key chosen by the caller, may be null
+     * @return false if failed, true if successful.
+     */
+    public static boolean writeLocalData(Double expense, String category, Collection<String> tags, String key) {
+        if (!DatabaseConnection.isConnected()) {
+            return false;
+        }
+
+        try {
+            submitData(expense, category, tags, key).join();
+            return true;
+        } catch (CompletionException e) {
+            LOGGER.log(Level.SEVERE, "Could not write to DB. {0}", e.getCause().toString());
+        }
+        return false;
+    }
+
+    /**
+     * Submit categorized and tagged data to be written to the database, without waiting for it. Writes of
+     * concurrent callers are given their balances in submission order and committed together.
+     * The spreadsheet catches up on the next sync.
+     *
+     * @param expense  expense to write
+     * @param category category of the expense, may be null
+     * @param tags     free-form tags of the expense, may be null
+     * @return future of the written row, completed exceptionally if the write failed.
+     */
+    public static CompletableFuture<Object[]> submitData(Double expense, String category, Collection<String> tags) {
+        return submitData(expense, category, tags, null);
+    }
+
+    /**
+     * Submit categorized and tagged data with an idempotency key. Submitting the same key again, e.g. when
+     * retrying after a failure whose outcome is unknown, does not write the expense twice.
+     *
+     * @param expense  expense to write
+     * @param category category of the expense, may be null
+     * @param tags     free-form tags of the expense, may be null
+     * @param key      idempotency key chosen by the caller, may be null
+     * @return future of the written row, or of the row written under the key before, completed exceptionally
+     * if the write failed.
+     */
+    public static CompletableFuture<Object[]> submitData(Double expense, String category, Collection<String> tags,
+                                                         String key) {
+        return DatabaseConnection.submit(null, expense, category, tags, key != null ? ExpenseKey.ofClient(key) : null);
+    }
+
+    /**
+     * Write a batch of rows to the database only, in one transaction. The spreadsheet catches up on the next sync.
+     * Rows whose idempotency key was written before are skipped.
+     *
+     * @param rows rows to write, each is an Object[] of the expense (Number), the category (String, may be null),
+     *             the tags (Collection of Strings, may be null) and optionally the idempotency key chosen by
+     *             the caller (String, may be null)
+     * @return the number of written rows, -1 if failed.
+     * @throws IllegalArgumentException throws an error if an expense is not a finite number, nothing is written
+     */
+    @SuppressWarnings("unchecked")
+    public static int writeLocalBatch(List<Object[]> rows) {
+        String timeString = formatNow();
+        List<Expense> expenses = new ArrayList<>(rows.size());
+
+        for (Object[] row : rows) {
+            Expense expense = new Expense(timeString, ((Number) row[0]).doubleValue(), null, (String) row[1]);
+            expense.setTags((Collection<String>) row[2]);
+            if (row.length > 3 && row[3] != null) {
+                expense.setKey(ExpenseKey.ofClient((String) row[3]));
+            }
+            expenses.add(expense);
+        }
+
+        try {
+            if (DatabaseConnection.isConnected()) {
+                return DatabaseConnection.writeBatch(expenses).size();
+            }
+        } catch (SQLException s) {
+            LOGGER.log(Level.SEVERE, "Could not write to DB. {0}", s.toString());
+        }
+        return -1;
+    }
+
     /**
      * Read all data from the database or the spreadsheet.
      *
@@ -66,16 +342,185 @@ public class DataManager {
     }
 
     /**
-     * Get the last row from the available data source.
+     * Read the rows not archived yet and the last row from the database, holding the writes back, together with
+     * the sequence of the last change they include. Without the database, all data is read from the spreadsheet.
+     *
+     * @return the recent rows, no rows if failed.
+     */
+    public static RecentRows readRecentRows() {
+        try {
+            if (DatabaseConnection.isConnected()) {
+                return DatabaseConnection.holdingWrites(() -> new RecentRows(DatabaseConnection.readRecent(),
+                        DatabaseConnection.readLastValue().getObject(), ChangeFeed.currentSequence()));
+            }
+
+            Object[][] rows = SheetManager.getAll();
+            return new RecentRows(rows, rows.length > 0 ? rows[rows.length - 1] : new Object[0],
+                    ChangeFeed.currentSequence());
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Could not read to spreadsheet. {0}", e.toString());
+        } catch (SQLException s) {
+            LOGGER.log(Level.SEVERE, "Could not read to DB. {0}", s.toString());
+        }
+        return new RecentRows(new Object[0][], new Object[0], ChangeFeed.currentSequence());
+    }
+
+    /**
+     * Read the rows not archived yet from the database, or all data from the spreadsheet.
+     *
+     * @return Object[][] with the data.
+     */
+    public static Object[][] readRecentData() {
+        try {
+            if (DatabaseConnection.isConnected()) {
+                return DatabaseConnection.readRecent();
+            } else {
+                return SheetManager.getAll();
+            }
+
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Could not read to spreadsheet. {0}", e.toString());
+        } catch (SQLException s) {
+            LOGGER.log(Level.SEVERE, "Could not read to DB. {0}", s.toString());
+        }
+        return new Object[0][];
+    }
+
+    /**
+     * Archive the rows older than the number of days given by the expensecalculator.hotDays system property,
+     * 365 by default.
+     *
+     * @return the number of archived rows, -1 if archiving failed
+     */
+    public static int archiveData() {
+        return archiveData(Integer.getInteger("expensecalculator.hotDays", 365));
+    }
+
+    /**
+     * Move the rows older than the given number of days into compressed monthly archive segments. The cutoff
+     * is rounded down to the start of its month, so that every archived month is complete. Archived rows are
+     * still returned by every query except {@link #readRecentData()}.
+     *
+     * @param days age of the oldest row kept in the recent tier
+     * @return the number of archived rows, -1 if archiving failed
+     */
+    public static int archiveData(int days) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.add(Calendar.DAY_OF_MONTH, -days);
+        String cutoffTime = new SimpleDateFormat("yyyy/MM").format(calendar.getTime()) + "/01 00:00:00";
+
+        try {
+            return DatabaseConnection.archiveBefore(cutoffTime);
+        } catch (SQLException s) {
+            LOGGER.log(Level.SEVERE, "Could not archive the DB. {0}", s.toString());
+        }
+        return -1;
+    }
+
+    /**
+     * Read the rows of the database between two times. Recently queried ranges are served from the cache.
+     * The returned array is shared with the cache and must not be modified.
+     *
+     * @param startTime start time for filtering, in the format of the stored dates, may be empty
+     * @param endTime   end time for filtering, in the format of the stored dates, may be empty
+     * @return Object[][] with the data.
+     */
+    public static Object[][] readDataInRange(String startTime, String endTime) {
+        try {
+            if (DatabaseConnection.isConnected()) {
+                DataCache.checkDataVersion(DatabaseConnection.readDataVersion());
+                return DataCache.getRange(startTime, endTime, () -> DatabaseConnection.readRange(startTime, endTime));
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Could not read to DB. {0}", e.toString());
+        } catch (SQLException s) {
+            LOGGER.log(Level.SEVERE, "Could not read to DB. {0}", s.toString());
+        }
+        return new Object[0][];
+    }
+
+    /**
+     * Read the rows of the database matching a category, tags and a time range.
+     * Null or empty parameters are not constraining.
+     *
+     * @param category  category the rows must belong to
+     * @param allOf     tags that all must be present on the row
+     * @param anyOf     tags from which at least one must be present on the row
+     * @param startTime start time for filtering, in the format of the stored dates
+     * @param endTime   end time for filtering, in the format of the stored dates
+     * @return Object[][] with the data.
+     */
+    public static Object[][] readDataByTags(String category, Collection<String> allOf, Collection<String> anyOf,
+                                            String startTime, String endTime) {
+        try {
+            if (DatabaseConnection.isConnected()) {
+                return DatabaseConnection.readByTags(category, allOf, anyOf, startTime, endTime);
+            }
+        } catch (SQLException s) {
+            LOGGER.log(Level.SEVERE, "Could not read to DB. {0}", s.toString());
+        }
+        return new Object[0][];
+    }
+
+    /**
+     * Count the expenses matching a category, tags and a time range.
+     * Null or empty parameters are not constraining.
+     *
+     * @param category  category the rows must belong to
+     * @param allOf     tags that all must be present on the row
+     * @param anyOf     tags from which at least one must be present on the row
+     * @param startTime start time for filtering, in the format of the stored dates
+     * @param endTime   end time for filtering, in the format of the stored dates
+     * @return number of the matching expenses, 0 if the database is not available.
+     */
+    public static int countDataByTags(String category, Collection<String> allOf, Collection<String> anyOf,
+                                      String startTime, String endTime) {
+        try {
+            if (DatabaseConnection.isConnected()) {
+                return DatabaseConnection.countByTags(category, allOf, anyOf, startTime, endTime);
+            }
+        } catch (SQLException s) {
+            LOGGER.log(Level.SEVERE, "Could not read to DB. {0}", s.toString());
+        }
+        return 0;
+    }
+
+    /**
+     * Sum the expenses matching a category, tags and a time range, e.g. how much was spent on food last month.
+     * Null or empty parameters are not constraining.
+     *
+     * @param category  category the rows must belong to
+     * @param allOf     tags that all must be present on the row
+     * @param anyOf     tags from which at least one must be present on the row
+     * @param startTime start time for filtering, in the format of the stored dates
+     * @param endTime   end time for filtering, in the format of the stored dates
+     * @return sum of the matching expenses, 0 if the database is not available.
+     */
+    public static double sumDataByTags(String category, Collection<String> allOf, Collection<String> anyOf,
+                                       String startTime, String endTime) {
+        try {
+            if (DatabaseConnection.isConnected()) {
+                return DatabaseConnection.sumByTags(category, allOf, anyOf, startTime, endTime);
+            }
+        } catch (SQLException s) {
+            LOGGER.log(Level.SEVERE, "Could not read to DB. {0}", s.toString());
+        }
+        return 0.0;
+    }
+
+    /**
+     * Get the last row from the available data source. Served from the cache unless it changed since the last read.
      *
      * @return An Object[] with the last row.
      */
     public static Object[] readLastData() {
         try {
             if (DatabaseConnection.isConnected()) {
-                return DatabaseConnection.readLastValue().getObject();
+                DataCache.checkDataVersion(DatabaseConnection.readDataVersion());
+                return DataCache.getLastRow(DataCache.Source.DATABASE,
+                        () -> DatabaseConnection.readLastValue().getObject());
             } else {
-                return SheetManager.getLastValue();
+                return DataCache.getLastRow(DataCache.Source.SPREADSHEET, SheetManager::getLastValue);
             }
 
         } catch (IOException e) {
@@ -87,68 +532,163 @@ public class DataManager {
     }
 
     /**
-     * Sync the data using Guava's MapDifference between the two data sources.
+     * Sync the data between the two data sources by comparing their digest trees. The database digest is kept
+     * up to date by the writes and the spreadsheet digest is built from one read of the sheet. If the roots
+     * match nothing else is done, otherwise only the days whose digests differ are read from the database
+     * and compared row by row. Only the database side is incremental: the spreadsheet has no revision to
+     * compare, so every sync reads the whole sheet and hashes it, even when nothing changed. Rows missing from
+     * the database are written with the content keys of their occurrence in the sheet, so rows of the same
+     * second are told apart and a repeated sync does not write them twice. A row that reached the sheet twice
+     * is not recognized by its key though, its second copy is a new occurrence, which is why the sheet is only
+     * appended to under the sheet lock.
+     * <p>
+     * Writes are held back and the sheet mirror is paused while the sheet is compared and appended to. The rows
+     * the mirror has not appended yet are appended by the sync, and the mirror skips them afterwards, so no row
+     * reaches the sheet twice.
      *
      * @return false if failed, true if successful.
      */
     public static boolean sync() {
-        Map<Timestamp, Object[]> db;
-        Map<Timestamp, Object[]> docs;
-        Map<Timestamp, Object[]> differing;
-
         try {
             LOGGER.log(Level.FINE, "Syncing the data.");
+            DataCache.invalidateAll();
 
-            if (DatabaseConnection.isConnected()) {
-                List<Object[]> dbElements = Lists.newArrayList(DatabaseConnection.readAll());
+            synchronized (sheetLock) {
+                return DatabaseConnection.holdingWrites(DataManager::syncHoldingWrites);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Could not sync the spreadsheet to the database. IOError {0}", e.toString());
+        } catch (SQLException s) {
+            LOGGER.log(Level.SEVERE, "Could not sync the spreadsheet to the database. SQLError {0}", s.toString());
+        } catch (IllegalArgumentException i) {
+            LOGGER.log(Level.SEVERE, "Could not sync the spreadsheet to the database, it has an invalid value. {0}",
+                    i.toString());
+        }
+        return false;
+    }
 
-                List<Object[]> docsElements = Lists.newArrayList(SheetManager.getAll());
+    /**
+     * Sync the data sources, holding the sheet lock and the database writes.
+     *
+     * @return false if the database is not available, true if successful.
+     * @throws IOException  throws an error if the spreadsheet can not be read or written
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    private static boolean syncHoldingWrites() throws IOException, SQLException {
+        if (!DatabaseConnection.isConnected()) {
+            return false;
+        }
 
-                db = Maps.uniqueIndex(dbElements, DataManager::convertObjectStringToTimestamp);
+        Object[][] docsElements = SheetManager.getAll();
 
-                docs = Maps.uniqueIndex(docsElements, DataManager::convertObjectStringToTimestamp);
+        LedgerDigest docs = LedgerDigest.of(docsElements);
+        LedgerDigest db = DatabaseConnection.getDigest();
 
-                MapDifference<Timestamp, Object[]> mapDifference = Maps.difference(db, docs);
+        if (db.root() == docs.root()) {
+            LOGGER.log(Level.FINE, "Data sources are in sync.");
+            sheetSyncedThrough = ChangeFeed.currentSequence();
+            return true;
+        }
 
-                differing = mapDifference.entriesOnlyOnRight();
+        Set<Integer> days = new HashSet<>(db.differingDays(docs));
+        Map<Integer, List<Object[]>> docsByDay = new HashMap<>();
+        for (Object[] row : docsElements) {
+            int day = row.length > 1 && row[0] != null ? docs.dayOf(row[0].toString()) : -1;
+            if (days.contains(day)) {
+                docsByDay.computeIfAbsent(day, d -> new ArrayList<>()).add(row);
+            }
+        }
 
+        LOGGER.log(Level.FINE, "Syncing {0} differing days.", days.size());
 
-                for (Timestamp key : differing.keySet()) {
-                    Object[] value = differing.get(key);
-                    DatabaseConnection.writeOne(value[0].toString(),
-                            Double.parseDouble(value[1].toString()));
-                }
+        List<Expense> synced = new ArrayList<>();
+        List<Object[]> onlyInDb = new ArrayList<>();
 
-                differing = mapDifference.entriesOnlyOnLeft();
+        for (Integer day : days) {
+            Object[][] dbElements = DatabaseConnection.readDay(
+                    String.format("%04d/%02d/%02d", day / 10000, day / 100 % 100, day % 100));
 
-                for (Timestamp key : differing.keySet()) {
-                    Object[] value = differing.get(key);
-                    SheetManager.writeOne(value[0].toString(),
-                            Double.parseDouble(value[1].toString()));
+            Map<String, Integer> dbKeys = new HashMap<>();
+            for (Object[] row : dbElements) {
+                dbKeys.merge(docs.rowKey(row[0].toString(), row[1]), 1, Integer::sum);
+            }
+
+            Map<String, Integer> docsOccurrences = new HashMap<>();
+            for (Object[] row : docsByDay.getOrDefault(day, Collections.emptyList())) {
+                String rowKey = docs.rowKey(row[0].toString(), row[1]);
+                int occurrence = docsOccurrences.merge(rowKey, 1, Integer::sum);
+
+                if (!consumeKey(dbKeys, rowKey)) {
+                    Expense expense = new Expense(row[0].toString(), Double.parseDouble(row[1].toString()),
+                            null);
+                    expense.setKey(ExpenseKey.ofContent(expense.getTime(), expense.getExpense(), occurrence));
+                    synced.add(expense);
+                }
+            }
+
+            for (Object[] row : dbElements) {
+                if (consumeKey(dbKeys, docs.rowKey(row[0].toString(), row[1]))) {
+                    onlyInDb.add(row);
                 }
-            } else {
-                return false;
             }
-        } catch (IOException e) {
-            LOGGER.log(Level.SEVERE, "Could not sync the spreadsheet to the database. IOError {0}", e.toString());
-        } catch (SQLException s) {
-            LOGGER.log(Level.SEVERE, "Could not sync the spreadsheet to the database. SQLError {0}", s.toString());
         }
-        return false;
+
+        if (!synced.isEmpty()) {
+            DatabaseConnection.writeBatch(synced, ChangeEvent.Type.SYNCED);
+        }
+
+        SheetManager.writeRows(onlyInDb);
+        sheetSyncedThrough = ChangeFeed.currentSequence();
+
+        return true;
     }
 
     /**
-     * Helper function to convert date strings to timestamps.
+     * Helper function to take one occurrence of a key from a multiset.
      *
-     * @param obj object which contains the data under inspection.
-     * @return timestamp
+     * @param keys count of the keys
+     * @param key  the key to take
+     * @return true if the key was present
      */
-    private static Timestamp convertObjectStringToTimestamp(Object[] obj) {
-        try {
-            return new Timestamp(dtf.parse(obj[0].toString()).getTime());
-        } catch (ParseException e) {
-            e.printStackTrace();
-            return null;
+    private static boolean consumeKey(Map<String, Integer> keys, String key) {
+        Integer count = keys.get(key);
+        if (count == null) {
+            return false;
+        }
+        if (count == 1) {
+            keys.remove(key);
+        } else {
+            keys.put(key, count - 1);
+        }
+        return true;
+    }
+
+    /**
+     * Check whether the database is available, e.g. before a command that only reads the database.
+     *
+     * @return true if the database is connected
+     */
+    public static boolean isDatabaseAvailable() {
+        return DatabaseConnection.isConnected();
+    }
+
+    /**
+     * Get the hit and miss statistics of the read cache.
+     *
+     * @return the statistics of the cached last rows and ranges together
+     */
+    public static CacheStats getCacheStats() {
+        return DataCache.stats();
+    }
+
+    /**
+     * Helper function to format the current time.
+     *
+     * @return the current time in the format of the stored dates
+     */
+    private static String formatNow() {
+        synchronized (dtf) {
+            return dtf.format(new Date());
         }
     }
 
@@ -1,26 +1,109 @@
 package hu.benjaminteke.expensecalculator.datamodel;
 
+import com.j256.ormlite.dao.CloseableIterator;
 import com.j256.ormlite.dao.Dao;
 import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.dao.GenericRawResults;
+import com.j256.ormlite.field.DataType;
 import com.j256.ormlite.jdbc.JdbcConnectionSource;
+import com.j256.ormlite.misc.TransactionManager;
+import com.j256.ormlite.stmt.DeleteBuilder;
+import com.j256.ormlite.stmt.QueryBuilder;
+import com.j256.ormlite.stmt.Where;
 import com.j256.ormlite.support.ConnectionSource;
 import com.j256.ormlite.table.DatabaseTableConfig;
 import com.j256.ormlite.table.TableUtils;
 
+import java.io.IOException;
 import java.sql.SQLException;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class DatabaseConnection {
     private final static Logger LOGGER = Logger.getLogger(DatabaseConnection.class.getName());
 
-    private final static String DATABASE_URL = "jdbc:sqlite:expense.db";
+    /**
+     * The database file can be overridden with the expensecalculator.database system property, e.g. for load tests.
+     */
+    private final static String DATABASE_URL =
+            "jdbc:sqlite:" + System.getProperty("expensecalculator.database", "expense.db");
+
+    /**
+     * Largest number of ids bound to a single IN clause, SQLite caps the host parameters of a statement.
+     */
+    private final static int MAX_IDS_PER_QUERY = 500;
+
+    /**
+     * Number of times a batch is written again after another process stored one of its keys meanwhile.
+     */
+    private final static int MAX_KEY_CONFLICT_RETRIES = 3;
 
     private static Dao<Expense, Integer> expenseDao;
 
+    private static Dao<ExpenseTag, Integer> tagDao;
+
+    private static Dao<ArchiveSegment, Integer> archiveDao;
+
+    private static Dao<Budget, Integer> budgetDao;
+
+    private static Dao<ExpenseKey, String> keyDao;
+
+    /**
+     * Built on the first tag query, so that startup does not pay for reading the whole table.
+     */
+    private static TagIndex tagIndex;
+
+    /**
+     * Built on the first sync, then kept up to date by the writes.
+     */
+    private static LedgerDigest digest;
+
+    /**
+     * Filter of the stored idempotency keys, created on the first write, loaded once the process has looked up
+     * enough keys and only used under the write lock.
+     */
+    private static DuplicateFilter duplicateFilter;
+
     private static ConnectionSource connectionSource;
 
+    private static final LedgerSequencer sequencer = new LedgerSequencer();
+
+    private static final Object writeLock = new Object();
+
+    /**
+     * Held for writing while rows move from the expenses table to the archive, and for reading by the queries
+     * combining the two tiers, so that they never see a row in both or in neither.
+     */
+    private static final ReadWriteLock tierLock = new ReentrantReadWriteLock();
+
+    /**
+     * Number of archived rows from which the database file is vacuumed, as it rewrites the whole file while
+     * holding the write lock.
+     */
+    private static final int VACUUM_MIN_ROWS = 10_000;
+
+    private static final Comparator<Expense> BY_ID = Comparator.comparingInt(Expense::getId);
+
+    /**
+     * Number of events the internal subscribers can take at once. They are updated on the writing thread,
+     * so this only has to hold the largest batch, a larger one makes them reset.
+     */
+    private final static int INDEX_FEED_CAPACITY = 1 << 20;
+
+    // The internal subscribers run inline on the writing thread, inside the write lock. The budget monitor relies
+    // on it, it reloads from the database on a reset.
+    static {
+        ChangeFeed.subscribe(INDEX_FEED_CAPACITY, Runnable::run, DatabaseConnection::indexChanges);
+        ChangeFeed.subscribe(INDEX_FEED_CAPACITY, Runnable::run, DataCache::changed);
+        ChangeFeed.subscribe(INDEX_FEED_CAPACITY, Runnable::run, BudgetMonitor.getInstance()::changed);
+    }
+
     /**
      * Initializes the database.
      */
@@ -29,6 +112,7 @@ public class DatabaseConnection {
             connectionSource = null;
             connectionSource = new JdbcConnectionSource(DATABASE_URL);
             setupDatabase(connectionSource);
+            loadBudgets();
 
             LOGGER.log(Level.FINE, "Database connection established");
 
@@ -46,7 +130,418 @@ public class DatabaseConnection {
     private static void setupDatabase(ConnectionSource connectionSource) throws Exception {
 
         expenseDao = DaoManager.createDao(connectionSource, Expense.class);
+        tagDao = DaoManager.createDao(connectionSource, ExpenseTag.class);
+        archiveDao = DaoManager.createDao(connectionSource, ArchiveSegment.class);
+        budgetDao = DaoManager.createDao(connectionSource, Budget.class);
+        keyDao = DaoManager.createDao(connectionSource, ExpenseKey.class);
+
+        migrateDatabase();
         TableUtils.createTableIfNotExists(connectionSource, Expense.class);
+        TableUtils.createTableIfNotExists(connectionSource, ExpenseTag.class);
+        TableUtils.createTableIfNotExists(connectionSource, ArchiveSegment.class);
+        TableUtils.createTableIfNotExists(connectionSource, Budget.class);
+        TableUtils.createTableIfNotExists(connectionSource, ExpenseKey.class);
+
+        if (keyDao.countOf() == 0) {
+            backfillKeys();
+        }
+
+        synchronized (writeLock) {
+            duplicateFilter = null;
+        }
+        resetIndexes();
+    }
+
+    /**
+     * Bring tables created by older versions up to date with the current schema.
+     *
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    private static void migrateDatabase() throws SQLException {
+        if (addColumnIfMissing(Expense.class, Expense.CATEGORY_FIELD_NAME, "VARCHAR")) {
+            addIndexIfMissing(Expense.CATEGORY_FIELD_NAME);
+        }
+        addIndexIfMissing(Expense.TIME_FIELD_NAME);
+        boolean closingRowAdded = addColumnIfMissing(ArchiveSegment.class,
+                ArchiveSegment.CLOSING_TIME_FIELD_NAME, "VARCHAR");
+        closingRowAdded |= addColumnIfMissing(ArchiveSegment.class,
+                ArchiveSegment.CLOSING_EXPENSE_FIELD_NAME, "DOUBLE");
+        if (closingRowAdded) {
+            for (ArchiveSegment segment : archiveDao.queryForAll()) {
+                segment.readClosingRow();
+                archiveDao.update(segment);
+            }
+        }
+    }
+
+    /**
+     * Helper function to add the index of a column to the expenses table if the table exists without it, as the
+     * range queries and the key backfill rely on it.
+     *
+     * @param columnName name of the column
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    private static void addIndexIfMissing(String columnName) throws SQLException {
+        String tableName = DatabaseTableConfig.extractTableName(Expense.class);
+
+        if (expenseDao.queryRawValue("SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = ?;",
+                tableName) == 0) {
+            return;
+        }
+
+        expenseDao.executeRaw("CREATE INDEX IF NOT EXISTS `" + tableName + "_" + columnName + "_idx` ON `"
+                + tableName + "` (`" + columnName + "`);");
+    }
+
+    /**
+     * Helper function to add a column to a table if the table exists without it.
+     *
+     * @param tableClass persisted class of the table
+     * @param columnName name of the column
+     * @param columnType SQL type of the column
+     * @return true if the column was added
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    private static boolean addColumnIfMissing(Class<?> tableClass, String columnName, String columnType)
+            throws SQLException {
+        String tableName = DatabaseTableConfig.extractTableName(tableClass);
+
+        if (expenseDao.queryRawValue("SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = ?;",
+                tableName) == 0) {
+            return false;
+        }
+
+        try (GenericRawResults<String[]> columns = expenseDao.queryRaw("PRAGMA table_info(`" + tableName + "`);")) {
+            for (String[] column : columns) {
+                if (columnName.equals(column[1])) {
+                    return false;
+                }
+            }
+        } catch (Exception e) {
+            throw new SQLException("Could not read table info of " + tableName, e);
+        }
+
+        expenseDao.executeRaw("ALTER TABLE `" + tableName + "` ADD COLUMN `" + columnName + "` " + columnType + ";");
+
+        LOGGER.log(Level.INFO, "Added column {0} to the database.", columnName);
+        return true;
+    }
+
+    /**
+     * Give the rows stored by older versions their content keys, numbering the rows of the same time and value
+     * in id order. Rows of the same time are always in the same tier and archive segment, as rows are archived
+     * by their time, so the rows are numbered one segment at a time.
+     *
+     * @throws SQLException throws an exception if an SQL error occured, in which case no key is written
+     */
+    private static void backfillKeys() throws SQLException {
+        int[] count = new int[1];
+        List<ExpenseKey> keys = new ArrayList<>(MAX_IDS_PER_QUERY);
+
+        TransactionManager.callInTransaction(connectionSource, () -> {
+            Map<String, Integer> occurrences = new HashMap<>();
+            String[] month = new String[1];
+
+            forEachArchivedRow(expense -> {
+                String rowMonth = expense.getTime().substring(0, "yyyy/MM".length());
+                if (!rowMonth.equals(month[0])) {
+                    month[0] = rowMonth;
+                    occurrences.clear();
+                }
+
+                int occurrence = occurrences.merge(expense.getTime() + "|" + expense.getExpense(), 1, Integer::sum);
+                keys.add(new ExpenseKey(ExpenseKey.ofContent(expense.getTime(), expense.getExpense(), occurrence),
+                        expense.getId()));
+                if (keys.size() == MAX_IDS_PER_QUERY) {
+                    count[0] += createKeys(keys);
+                }
+            });
+
+            try (GenericRawResults<Object[]> rows = expenseDao.queryRaw(
+                    "SELECT `id`, `" + Expense.TIME_FIELD_NAME + "`, `" + Expense.EXPENSE_FIELD_NAME + "` FROM `"
+                            + DatabaseTableConfig.extractTableName(Expense.class) + "` WHERE `"
+                            + Expense.EXPENSE_FIELD_NAME + "` IS NOT NULL ORDER BY `" + Expense.TIME_FIELD_NAME
+                            + "`, `" + Expense.EXPENSE_FIELD_NAME + "`, `id`;",
+                    new DataType[]{DataType.INTEGER, DataType.STRING, DataType.DOUBLE_OBJ})) {
+                String previous = null;
+                int occurrence = 0;
+
+                for (Object[] row : rows) {
+                    String content = row[1] + "|" + row[2];
+                    occurrence = content.equals(previous) ? occurrence + 1 : 1;
+                    previous = content;
+
+                    keys.add(new ExpenseKey(ExpenseKey.ofContent((String) row[1], (Double) row[2], occurrence),
+                            (Integer) row[0]));
+                    if (keys.size() == MAX_IDS_PER_QUERY) {
+                        count[0] += createKeys(keys);
+                    }
+                }
+                count[0] += createKeys(keys);
+            } catch (SQLException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new SQLException("Could not read the expenses to key", e);
+            }
+            return null;
+        });
+
+        if (count[0] > 0) {
+            LOGGER.log(Level.INFO, "Added idempotency keys to {0} rows.", String.valueOf(count[0]));
+        }
+    }
+
+    /**
+     * Helper function to insert idempotency keys with multi-row statements, which is much faster than one
+     * statement per key on large imports. Keys already stored are left as they are.
+     *
+     * @param keys the keys to insert, the list is cleared
+     * @return the number of inserted keys, less than the number of keys if some of them were already stored
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    private static int createKeys(List<ExpenseKey> keys) throws SQLException {
+        int count = 0;
+        String tableName = DatabaseTableConfig.extractTableName(ExpenseKey.class);
+
+        // two host parameters per key, SQLite caps them the same way as the ids of an IN clause
+        for (int from = 0; from < keys.size(); from += MAX_IDS_PER_QUERY / 2) {
+            List<ExpenseKey> chunk = keys.subList(from, Math.min(keys.size(), from + MAX_IDS_PER_QUERY / 2));
+            StringJoiner values = new StringJoiner(", ");
+            String[] arguments = new String[chunk.size() * 2];
+
+            for (int i = 0; i < chunk.size(); i++) {
+                values.add("(?, ?)");
+                arguments[i * 2] = chunk.get(i).getKey();
+                arguments[i * 2 + 1] = String.valueOf(chunk.get(i).getExpenseId());
+            }
+
+            count += keyDao.executeRaw("INSERT OR IGNORE INTO `" + tableName + "` (`" + ExpenseKey.KEY_FIELD_NAME + "`, `"
+                    + ExpenseKey.EXPENSE_ID_FIELD_NAME + "`) VALUES " + values + ";", arguments);
+        }
+
+        keys.clear();
+        return count;
+    }
+
+    /**
+     * Get the filter of the stored idempotency keys, loading the stored keys into it once enough of them were
+     * looked up without it. The caller holds the write lock.
+     *
+     * @return the filter
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    private static DuplicateFilter getDuplicateFilter() throws SQLException {
+        if (duplicateFilter == null) {
+            duplicateFilter = new DuplicateFilter();
+        }
+
+        if (duplicateFilter.shouldLoad()) {
+            long start = System.nanoTime();
+            DuplicateFilter filter = duplicateFilter;
+            filter.load(keyDao.countOf());
+
+            try (GenericRawResults<String[]> keys = keyDao.queryRaw("SELECT `" + ExpenseKey.KEY_FIELD_NAME
+                    + "` FROM `" + DatabaseTableConfig.extractTableName(ExpenseKey.class) + "`;")) {
+                for (String[] key : keys) {
+                    filter.put(key[0]);
+                }
+            } catch (Exception e) {
+                // a partly loaded filter would rule out stored keys
+                duplicateFilter = null;
+                throw new SQLException("Could not load the idempotency keys", e);
+            }
+
+            LOGGER.log(Level.FINE, "Loaded {0} idempotency keys in {1} ms.", new Object[]{
+                    String.valueOf(filter.getSize()), String.valueOf((System.nanoTime() - start) / 1_000_000)});
+        }
+        return duplicateFilter;
+    }
+
+    /**
+     * Helper function to check whether a single idempotency key is stored, looking it up only if the filter can
+     * not rule it out.
+     *
+     * @param filter    the filter of the stored keys
+     * @param key       the key
+     * @param lookUpAll whether the key is looked up even if the filter rules it out
+     * @return true if the key is stored
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    private static boolean isStored(DuplicateFilter filter, String key, boolean lookUpAll) throws SQLException {
+        if (!lookUpAll && !filter.mightContain(key)) {
+            return false;
+        }
+
+        boolean stored = keyDao.idExists(key);
+        filter.looked(stored);
+        return stored;
+    }
+
+    /**
+     * Helper function to look up which of the keys the filter could not rule out are stored, in one query per
+     * chunk of keys.
+     *
+     * @param filter     the filter of the stored keys
+     * @param candidates the keys the filter may contain
+     * @return the stored keys among them
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    private static Set<String> readStoredKeys(DuplicateFilter filter, List<String> candidates) throws SQLException {
+        Set<String> stored = new HashSet<>();
+
+        for (int from = 0; from < candidates.size(); from += MAX_IDS_PER_QUERY) {
+            List<String> chunk = candidates.subList(from, Math.min(candidates.size(), from + MAX_IDS_PER_QUERY));
+
+            for (ExpenseKey key : keyDao.queryBuilder().selectColumns(ExpenseKey.KEY_FIELD_NAME).where()
+                    .in(ExpenseKey.KEY_FIELD_NAME, chunk).query()) {
+                stored.add(key.getKey());
+            }
+        }
+
+        for (String candidate : candidates) {
+            filter.looked(stored.contains(candidate));
+        }
+        return stored;
+    }
+
+    /**
+     * Drop the tag index and the digest, they are rebuilt on their next use.
+     */
+    private static synchronized void resetIndexes() {
+        tagIndex = null;
+        digest = null;
+    }
+
+    /**
+     * Get the digest tree of the stored rows, building it on the first call. Writes are held back while it is
+     * built, so that every row is counted exactly once.
+     *
+     * @return the digest
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    static LedgerDigest getDigest() throws SQLException {
+        synchronized (writeLock) {
+            synchronized (DatabaseConnection.class) {
+                if (digest == null) {
+                    LedgerDigest newDigest = new LedgerDigest();
+                    forEachTimeAndValue(newDigest::add);
+                    digest = newDigest;
+                }
+                return digest;
+            }
+        }
+    }
+
+    /**
+     * Get the tag index, building it from the stored rows and tags on the first call.
+     *
+     * @return the tag index
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    private static synchronized TagIndex getTagIndex() throws SQLException {
+        if (tagIndex == null) {
+            TagIndex index = new TagIndex();
+            loadTagIndex(index);
+            tagIndex = index;
+        }
+        return tagIndex;
+    }
+
+    /**
+     * Add the written rows of the change feed to the digest and the tag index, if they are already built.
+     * Runs on the writing thread, right after the commit.
+     *
+     * @param events the published changes
+     */
+    private static synchronized void indexChanges(List<ChangeEvent> events) {
+        for (ChangeEvent event : events) {
+            if (event.getType() == ChangeEvent.Type.RESET) {
+                resetIndexes();
+            } else if (event.getType() != ChangeEvent.Type.ARCHIVED) {
+                indexRow(event);
+            }
+        }
+    }
+
+    /**
+     * Helper function to add a written row to the digest and the tag index.
+     *
+     * @param event the change of the row
+     */
+    private static void indexRow(ChangeEvent event) {
+        String time = (String) event.getRow()[0];
+        Double expense = (Double) event.getRow()[1];
+
+        if (digest != null) {
+            digest.add(time, expense);
+        }
+
+        if (tagIndex == null) {
+            return;
+        }
+
+        tagIndex.add(event.getId(), time, expense, event.getCategory());
+
+        if (event.getTags() != null) {
+            for (String tag : event.getTags()) {
+                tagIndex.addTag(event.getId(), tag);
+            }
+        }
+    }
+
+    /**
+     * Build the in-memory tag index from the stored rows and tags.
+     *
+     * @param tagIndex the empty index to fill
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    private static void loadTagIndex(TagIndex tagIndex) throws SQLException {
+        tierLock.readLock().lock();
+        try {
+            forEachArchivedRow(expense -> {
+                tagIndex.add(expense.getId(), expense.getTime(), expense.getExpense(), expense.getCategory());
+
+                if (expense.getTags() != null) {
+                    for (String tag : expense.getTags()) {
+                        tagIndex.addTag(expense.getId(), tag);
+                    }
+                }
+            });
+            loadHotTagIndex(tagIndex);
+        } finally {
+            tierLock.readLock().unlock();
+        }
+
+        LOGGER.log(Level.FINE, "Tag index loaded.");
+    }
+
+    /**
+     * Add the rows and tags of the expenses table to the tag index.
+     *
+     * @param tagIndex the index to fill
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    private static void loadHotTagIndex(TagIndex tagIndex) throws SQLException {
+        try (GenericRawResults<Object[]> rows = expenseDao.queryRaw(
+                "SELECT `id`, `timeOfExpense`, `expense`, `" + Expense.CATEGORY_FIELD_NAME + "` FROM `"
+                        + DatabaseTableConfig.extractTableName(Expense.class) + "`;",
+                new DataType[]{DataType.INTEGER, DataType.STRING, DataType.DOUBLE_OBJ, DataType.STRING})) {
+            for (Object[] row : rows) {
+                tagIndex.add((Integer) row[0], (String) row[1], (Double) row[2], (String) row[3]);
+            }
+        } catch (Exception e) {
+            throw new SQLException("Could not load the expenses into the tag index", e);
+        }
+
+        try (GenericRawResults<String[]> rows = tagDao.queryRaw(
+                "SELECT `" + ExpenseTag.EXPENSE_ID_FIELD_NAME + "`, `" + ExpenseTag.TAG_FIELD_NAME + "` FROM `"
+                        + DatabaseTableConfig.extractTableName(ExpenseTag.class) + "`;")) {
+            for (String[] row : rows) {
+                tagIndex.addTag(Integer.parseInt(row[0]), row[1]);
+            }
+        } catch (Exception e) {
+            throw new SQLException("Could not load the tags into the tag index", e);
+        }
     }
 
     /**
@@ -57,23 +552,640 @@ public class DatabaseConnection {
      * @throws SQLException throws an exception if an SQL error occured
      */
     static void writeOne(String timeOfExpense, Double expense) throws SQLException {
-        Double balance = DatabaseConnection.readLastValue().getBalance() + expense;
-        expenseDao.create(new Expense(timeOfExpense, expense, balance));
+        writeOne(timeOfExpense, expense, null, null);
+    }
+
+    /**
+     * Write out the data with its category and tags to the database and the tag index, waiting for the
+     * ledger writer to commit it.
+     *
+     * @param timeOfExpense time of the expense
+     * @param expense actual expense value
+     * @param category category of the expense, may be null
+     * @param tags free-form tags of the expense, may be null
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    static void writeOne(String timeOfExpense, Double expense, String category, Collection<String> tags)
+            throws SQLException {
+        try {
+            submit(timeOfExpense, expense, category, tags, null).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the write.", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof SQLException
+                    ? (SQLException) e.getCause() : new SQLException(e.getCause());
+        }
 
         LOGGER.log(Level.FINE, "Write data to database successful.");
     }
 
     /**
-     * Read all the data from the database.
+     * Submit an expense to the ledger writer without waiting for it. Submissions of many threads are
+     * written in submission order and committed in groups.
+     *
+     * @param timeOfExpense time of the expense, or null to use the time it is written at
+     * @param expense actual expense value
+     * @param category category of the expense, may be null
+     * @param tags free-form tags of the expense, may be null
+     * @param key idempotency key of the expense, or null to write it as a new expense
+     * @return future of the written row, or of the stored row if the key was already written
+     */
+    static CompletableFuture<Object[]> submit(String timeOfExpense, Double expense, String category,
+                                              Collection<String> tags, String key) {
+        return sequencer.submit(timeOfExpense, expense, category, tags, key);
+    }
+
+    /**
+     * Run a task while no rows can be written, e.g. to compare the ledger with another copy of it. By then the
+     * rows committed before are all published on the change feed. The task may write rows itself.
+     *
+     * @param task the task
+     * @param <T>  type of the result of the task
+     * @return the result of the task
+     * @throws SQLException throws an exception if the task failed with an SQL error
+     * @throws IOException  throws an error if the task failed with an IO error
+     */
+    static <T> T holdingWrites(DataCache.Loader<T> task) throws SQLException, IOException {
+        synchronized (writeLock) {
+            return task.load();
+        }
+    }
+
+    /**
+     * Write out a batch of expenses in a single transaction. The balances are computed here, in list order,
+     * continuing from the last stored balance. Batches are written one at a time, this is the only place
+     * where rows are added to the database.
+     * <p>
+     * Expenses whose idempotency key is already stored, or repeated in the batch, are skipped. Expenses without
+     * a key get the first free content key of their time and value. A missing or infinite value would spoil
+     * every later balance, so a batch containing one is rejected as a whole.
+     *
+     * @param expenses expenses to write, their balance and key are overwritten
+     * @return the written expenses, without the skipped duplicates
+     * @throws IllegalArgumentException throws an error if a value is missing or not a finite number
+     * @throws SQLException             throws an exception if an SQL error occured, in which case nothing is
+     *                                  written
+     */
+    static List<Expense> writeBatch(List<Expense> expenses) throws SQLException {
+        return writeBatch(expenses, ChangeEvent.Type.APPENDED);
+    }
+
+    /**
+     * Write out a batch of expenses in a single transaction and publish them on the change feed.
+     *
+     * @param expenses expenses to write, their balance and key are overwritten
+     * @param type     the change type to publish, APPENDED or SYNCED
+     * @return the written expenses, without the skipped duplicates
+     * @throws IllegalArgumentException throws an error if a value is missing or not a finite number
+     * @throws SQLException             throws an exception if an SQL error occured, in which case nothing is
+     *                                  written
+     */
+    static List<Expense> writeBatch(List<Expense> expenses, ChangeEvent.Type type) throws SQLException {
+        for (Expense expense : expenses) {
+            Double value = expense.getExpense();
+            if (value == null || value.isNaN() || value.isInfinite()) {
+                throw new IllegalArgumentException("Not a valid expense at " + expense.getTime() + ": " + value);
+            }
+        }
+
+        synchronized (writeLock) {
+            return writeBatchLocked(expenses, type);
+        }
+    }
+
+    /**
+     * Write out a batch of expenses, holding the write lock. The change feed is published while the lock is
+     * still held, so the events are numbered in commit order. The keys are added to the filter only after the
+     * commit, so a failed batch can be retried.
+     * <p>
+     * The filter only knows the keys written by this process. If another process, e.g. the command line next to
+     * the GUI, stored one of the keys meanwhile, the batch is rolled back and written again with every key looked
+     * up, so the key is skipped as a duplicate instead of failing the batch.
+     *
+     * @param expenses expenses to write, their balance and key are overwritten
+     * @param type     the change type to publish
+     * @return the written expenses, without the skipped duplicates
+     * @throws SQLException throws an exception if an SQL error occured, in which case nothing is written
+     */
+    private static List<Expense> writeBatchLocked(List<Expense> expenses, ChangeEvent.Type type)
+            throws SQLException {
+        DuplicateFilter filter = getDuplicateFilter();
+        String[] givenKeys = new String[expenses.size()];
+        for (int i = 0; i < givenKeys.length; i++) {
+            givenKeys[i] = expenses.get(i).getKey();
+        }
+
+        for (int retry = 0; ; retry++) {
+            try {
+                return writeBatchOnce(filter, expenses, type, retry > 0);
+            } catch (KeyConflictException e) {
+                if (retry == MAX_KEY_CONFLICT_RETRIES) {
+                    throw e;
+                }
+                LOGGER.log(Level.FINE, "Another process stored a key of the batch, writing it again.");
+
+                for (int i = 0; i < givenKeys.length; i++) {
+                    expenses.get(i).setKey(givenKeys[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Helper function to write out a batch of expenses once, holding the write lock.
+     *
+     * @param filter    the filter of the stored keys
+     * @param expenses  expenses to write, their balance and key are overwritten
+     * @param type      the change type to publish
+     * @param lookUpAll whether every key is looked up, as the filter missed a key stored by another process
+     * @return the written expenses, without the skipped duplicates
+     * @throws KeyConflictException throws an exception if another process stored a key of the batch meanwhile
+     * @throws SQLException         throws an exception if an SQL error occured, in which case nothing is written
+     */
+    private static List<Expense> writeBatchOnce(DuplicateFilter filter, List<Expense> expenses,
+                                                ChangeEvent.Type type, boolean lookUpAll) throws SQLException {
+        Set<String> batchKeys = new HashSet<>();
+        List<Expense> written = new ArrayList<>(expenses.size());
+
+        List<String> candidates = new ArrayList<>();
+        for (Expense expense : expenses) {
+            if (expense.getKey() != null && (lookUpAll || filter.mightContain(expense.getKey()))) {
+                candidates.add(expense.getKey());
+            }
+        }
+        Set<String> storedKeys = readStoredKeys(filter, candidates);
+        if (lookUpAll) {
+            storedKeys.forEach(filter::put);
+        }
+        Map<String, Integer> occurrences = new HashMap<>();
+
+        for (Expense expense : expenses) {
+            if (expense.getKey() == null) {
+                String content = expense.getTime() + "|" + expense.getExpense();
+                int occurrence = filter.nextOccurrence(content);
+                String key = ExpenseKey.ofContent(expense.getTime(), expense.getExpense(), occurrence);
+
+                while (batchKeys.contains(key) || isStored(filter, key, lookUpAll)) {
+                    key = ExpenseKey.ofContent(expense.getTime(), expense.getExpense(), ++occurrence);
+                }
+                expense.setKey(key);
+                occurrences.put(content, occurrence);
+            } else if (batchKeys.contains(expense.getKey()) || storedKeys.contains(expense.getKey())) {
+                continue;
+            }
+
+            batchKeys.add(expense.getKey());
+            written.add(expense);
+        }
+
+        if (written.isEmpty()) {
+            LOGGER.log(Level.FINE, "Skipped a batch of {0} duplicates.", expenses.size());
+            return written;
+        }
+
+        TransactionManager.callInTransaction(connectionSource, () -> {
+            Double balance = DatabaseConnection.readLastValue().getBalance();
+
+            for (Expense expense : written) {
+                balance += expense.getExpense();
+                expense.setBalance(balance);
+                expenseDao.create(expense);
+
+                if (expense.getTags() != null) {
+                    for (String tag : expense.getTags()) {
+                        tagDao.create(new ExpenseTag(expense.getId(), tag));
+                    }
+                }
+            }
+
+            List<ExpenseKey> keys = new ArrayList<>(written.size());
+            for (Expense expense : written) {
+                keys.add(new ExpenseKey(expense.getKey(), expense.getId()));
+            }
+            if (createKeys(keys) < written.size()) {
+                // rolls back the rows written for the already stored keys
+                throw new KeyConflictException();
+            }
+            return null;
+        });
+
+        for (Expense expense : written) {
+            filter.put(expense.getKey());
+        }
+        for (Map.Entry<String, Integer> occurrence : occurrences.entrySet()) {
+            filter.taken(occurrence.getKey(), occurrence.getValue());
+        }
+
+        ChangeFeed.publish(type, written);
+
+        LOGGER.log(Level.FINE, "Write batch of {0} to database successful, {1} duplicates skipped, {2} false "
+                + "positives of the key filter so far.", new Object[]{String.valueOf(written.size()),
+                String.valueOf(expenses.size() - written.size()), String.valueOf(filter.getFalsePositives())});
+
+        return written;
+    }
+
+    /**
+     * Thrown inside the transaction of a batch if another process stored one of its keys, to roll it back.
+     */
+    private static class KeyConflictException extends SQLException {
+        private static final long serialVersionUID = 1L;
+
+        KeyConflictException() {
+            super("An idempotency key of the batch was stored by another process.");
+        }
+    }
+
+    /**
+     * Read the stored row of an idempotency key, from whichever tier it is in.
+     *
+     * @param key the key
+     * @return the row of the time, the expense and the balance, null if the key is not stored
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    static Object[] readByKey(String key) throws SQLException {
+        ExpenseKey stored = keyDao.queryForId(key);
+        if (stored == null) {
+            return null;
+        }
+
+        tierLock.readLock().lock();
+        try {
+            Expense expense = readOneById(stored.getExpenseId());
+
+            if (expense == null) {
+                BitSet ids = new BitSet();
+                ids.set(stored.getExpenseId());
+                List<Expense> archived = readArchivedByIds(ids);
+                expense = archived.isEmpty() ? null : archived.get(0);
+            }
+            return expense != null ? expense.getObject() : null;
+        } finally {
+            tierLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Read the time and value of every stored row, archived ones included, without materializing the whole
+     * ledger. Archive segments are decompressed one at a time.
+     *
+     * @param consumer called with the time and the value of each row
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    static void forEachTimeAndValue(BiConsumer<String, Double> consumer) throws SQLException {
+        tierLock.readLock().lock();
+        try {
+            forEachArchivedRow(expense -> consumer.accept(expense.getTime(), expense.getExpense()));
+
+            try (GenericRawResults<Object[]> rows = expenseDao.queryRaw(
+                    "SELECT `timeOfExpense`, `expense` FROM `" + DatabaseTableConfig.extractTableName(Expense.class)
+                            + "`;",
+                    new DataType[]{DataType.STRING, DataType.DOUBLE_OBJ})) {
+                for (Object[] row : rows) {
+                    consumer.accept((String) row[0], (Double) row[1]);
+                }
+            } catch (Exception e) {
+                throw new SQLException("Could not read the stored times", e);
+            }
+        } finally {
+            tierLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Move the rows older than a time from the expenses table to compressed archive segments, one per month.
+     * Rows of a month that already has a segment are merged into it, and the database file is compacted
+     * afterwards. The tag index, the digest and the cache stay valid, as the ledger itself does not change,
+     * only the recent tier shrinks, which is published on the change feed.
+     *
+     * @param cutoffTime rows before this time are archived
+     * @return the number of archived rows
+     * @throws SQLException throws an exception if an SQL error occured, in which case nothing is moved
+     */
+    static int archiveBefore(String cutoffTime) throws SQLException {
+        synchronized (writeLock) {
+            int archived;
+
+            tierLock.writeLock().lock();
+            try {
+                archived = archiveLocked(cutoffTime);
+            } finally {
+                tierLock.writeLock().unlock();
+            }
+
+            if (archived > 0) {
+                ChangeFeed.publishArchived(cutoffTime);
+            }
+            return archived;
+        }
+    }
+
+    /**
+     * Move the rows older than a time to the archive, holding the write lock and the tier lock.
+     *
+     * @param cutoffTime rows before this time are archived
+     * @return the number of archived rows
+     * @throws SQLException throws an exception if an SQL error occured, in which case nothing is moved
+     */
+    private static int archiveLocked(String cutoffTime) throws SQLException {
+        List<Expense> expenses = expenseDao.queryBuilder().orderBy("id", true).where()
+                .lt(Expense.TIME_FIELD_NAME, cutoffTime)
+                .and().isNotNull(Expense.EXPENSE_FIELD_NAME)
+                .and().isNotNull(Expense.BALANCE_FIELD_NAME).query();
+
+        if (expenses.isEmpty()) {
+            return 0;
+        }
+
+        Map<String, List<Expense>> months = new TreeMap<>();
+        List<Integer> ids = new ArrayList<>(expenses.size());
+        for (Expense expense : expenses) {
+            months.computeIfAbsent(expense.getTime().substring(0, "yyyy/MM".length()),
+                    k -> new ArrayList<>()).add(expense);
+            ids.add(expense.getId());
+        }
+        attachTags(expenses, ids);
+
+        TransactionManager.callInTransaction(connectionSource, () -> {
+            for (Map.Entry<String, List<Expense>> month : months.entrySet()) {
+                writeSegment(month.getKey(), month.getValue());
+            }
+
+            for (int from = 0; from < ids.size(); from += MAX_IDS_PER_QUERY) {
+                List<Integer> chunk = ids.subList(from, Math.min(ids.size(), from + MAX_IDS_PER_QUERY));
+                expenseDao.deleteIds(chunk);
+
+                DeleteBuilder<ExpenseTag, Integer> deleteBuilder = tagDao.deleteBuilder();
+                deleteBuilder.where().in(ExpenseTag.EXPENSE_ID_FIELD_NAME, chunk);
+                deleteBuilder.delete();
+            }
+            return null;
+        });
+
+        // SQLite reuses the freed pages for the next rows, the file is only worth rewriting after a large move
+        if (expenses.size() >= VACUUM_MIN_ROWS) {
+            expenseDao.executeRaw("VACUUM;");
+        }
+
+        LOGGER.log(Level.INFO, "Archived {0} rows of {1} months.",
+                new Object[]{String.valueOf(expenses.size()), String.valueOf(months.size())});
+
+        return expenses.size();
+    }
+
+    /**
+     * Helper function to create the segment of a month, or merge rows into its existing segment.
+     *
+     * @param month    the month in the yyyy/MM format
+     * @param expenses the rows to archive, with their tags
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    private static void writeSegment(String month, List<Expense> expenses) throws SQLException {
+        ArchiveSegment segment = archiveDao.queryBuilder().where()
+                .eq(ArchiveSegment.MONTH_FIELD_NAME, month).queryForFirst();
+        List<Expense> rows = new ArrayList<>(expenses);
+
+        if (segment != null) {
+            rows.addAll(segment.getRows());
+            rows.sort(BY_ID);
+        } else {
+            segment = new ArchiveSegment();
+        }
+
+        segment.setRows(month, rows);
+        archiveDao.createOrUpdate(segment);
+    }
+
+    /**
+     * Helper function to read the tags of rows from the expense_tags table.
+     *
+     * @param expenses the rows to set the tags of
+     * @param ids      the ids of the rows
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    private static void attachTags(List<Expense> expenses, List<Integer> ids) throws SQLException {
+        Map<Integer, List<String>> tags = new HashMap<>();
+
+        for (int from = 0; from < ids.size(); from += MAX_IDS_PER_QUERY) {
+            List<Integer> chunk = ids.subList(from, Math.min(ids.size(), from + MAX_IDS_PER_QUERY));
+
+            try (GenericRawResults<String[]> rows = tagDao.queryRaw(
+                    "SELECT `" + ExpenseTag.EXPENSE_ID_FIELD_NAME + "`, `" + ExpenseTag.TAG_FIELD_NAME + "` FROM `"
+                            + DatabaseTableConfig.extractTableName(ExpenseTag.class) + "` WHERE `"
+                            + ExpenseTag.EXPENSE_ID_FIELD_NAME + "` IN (" + joinIds(chunk) + ");")) {
+                for (String[] row : rows) {
+                    tags.computeIfAbsent(Integer.parseInt(row[0]), k -> new ArrayList<>()).add(row[1]);
+                }
+            } catch (Exception e) {
+                throw new SQLException("Could not read the tags of the archived rows", e);
+            }
+        }
+
+        for (Expense expense : expenses) {
+            expense.setTags(tags.get(expense.getId()));
+        }
+    }
+
+    private static String joinIds(List<Integer> ids) {
+        StringJoiner joiner = new StringJoiner(",");
+        for (Integer id : ids) {
+            joiner.add(id.toString());
+        }
+        return joiner.toString();
+    }
+
+    /**
+     * Helper function to run through the archived rows, decompressing one segment at a time.
+     *
+     * @param consumer called with each archived row
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    private static void forEachArchivedRow(ExpenseConsumer consumer) throws SQLException {
+        try (CloseableIterator<ArchiveSegment> segments = archiveDao.iterator()) {
+            while (segments.hasNext()) {
+                for (Expense expense : segments.next().getRows()) {
+                    consumer.accept(expense);
+                }
+            }
+        } catch (SQLException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SQLException("Could not read the archive", e);
+        }
+    }
+
+    /**
+     * Helper function to read the archived rows of the segments overlapping a time range, skipping the other
+     * segments without decompressing them.
+     *
+     * @param startTime start time for filtering, inclusive, may be empty
+     * @param endTime   end time for filtering, exclusive, may be empty
+     * @return the archived rows of the range
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    private static List<Expense> readArchivedRange(String startTime, String endTime) throws SQLException {
+        QueryBuilder<ArchiveSegment, Integer> queryBuilder = archiveDao.queryBuilder();
+        Where<ArchiveSegment, Integer> where = queryBuilder.where();
+        where.isNotNull(ArchiveSegment.MONTH_FIELD_NAME);
+
+        if (startTime != null && !startTime.isEmpty()) {
+            where.and().ge(ArchiveSegment.LAST_TIME_FIELD_NAME, startTime);
+        }
+        if (endTime != null && !endTime.isEmpty()) {
+            where.and().lt(ArchiveSegment.FIRST_TIME_FIELD_NAME, endTime);
+        }
+
+        List<Expense> expenses = new ArrayList<>();
+        for (ArchiveSegment segment : queryBuilder.query()) {
+            for (Expense expense : segment.getRows()) {
+                if ((startTime == null || startTime.isEmpty() || expense.getTime().compareTo(startTime) >= 0)
+                        && (endTime == null || endTime.isEmpty() || expense.getTime().compareTo(endTime) < 0)) {
+                    expenses.add(expense);
+                }
+            }
+        }
+        return expenses;
+    }
+
+    /**
+     * Helper function to read archived rows by id, decompressing only the segments whose id range contains
+     * one of them.
+     *
+     * @param ids the ids to read
+     * @return the archived rows found
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    private static List<Expense> readArchivedByIds(BitSet ids) throws SQLException {
+        List<Expense> expenses = new ArrayList<>();
+
+        for (ArchiveSegment segment : archiveDao.queryBuilder().where()
+                .le(ArchiveSegment.FIRST_ID_FIELD_NAME, ids.length() - 1).and()
+                .ge(ArchiveSegment.LAST_ID_FIELD_NAME, ids.nextSetBit(0)).query()) {
+            int next = ids.nextSetBit(segment.getFirstId());
+            if (next < 0 || next > segment.getLastId()) {
+                continue;
+            }
+
+            for (Expense expense : segment.getRows()) {
+                if (ids.get(expense.getId())) {
+                    expenses.add(expense);
+                }
+            }
+        }
+        return expenses;
+    }
+
+    /**
+     * Read the rows matching the given category, tags and time range, using the tag index.
+     *
+     * @param category category the rows must belong to, may be null
+     * @param allOf tags that all must be present on the row, may be null
+     * @param anyOf tags from which at least one must be present on the row, may be null
+     * @param startTime start time for filtering, may be empty
+     * @param endTime end time for filtering, may be empty
+     * @return an Object[][] that contains the matching rows as arrays.
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    static Object[][] readByTags(String category, Collection<String> allOf, Collection<String> anyOf,
+                                 String startTime, String endTime) throws SQLException {
+        BitSet ids = getTagIndex().select(category, allOf, anyOf, startTime, endTime);
+        BitSet archived = (BitSet) ids.clone();
+        List<Expense> expenses = new ArrayList<>(ids.cardinality());
+        List<Integer> chunk = new ArrayList<>(MAX_IDS_PER_QUERY);
+
+        tierLock.readLock().lock();
+        try {
+            for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+                chunk.add(id);
+
+                if (chunk.size() == MAX_IDS_PER_QUERY || ids.nextSetBit(id + 1) < 0) {
+                    for (Expense expense : expenseDao.queryBuilder().where().in("id", chunk).query()) {
+                        expenses.add(expense);
+                        archived.clear(expense.getId());
+                    }
+                    chunk.clear();
+                }
+            }
+
+            if (!archived.isEmpty()) {
+                expenses.addAll(readArchivedByIds(archived));
+            }
+        } finally {
+            tierLock.readLock().unlock();
+        }
+
+        LOGGER.log(Level.FINE, "Reading {0} tagged values from the database.", expenses.size());
+
+        return toRows(expenses);
+    }
+
+    /**
+     * Count the expenses matching the given category, tags and time range, using only the tag index.
+     *
+     * @param category category the rows must belong to, may be null
+     * @param allOf tags that all must be present on the row, may be null
+     * @param anyOf tags from which at least one must be present on the row, may be null
+     * @param startTime start time for filtering, may be empty
+     * @param endTime end time for filtering, may be empty
+     * @return number of the matching expenses
+     * @throws SQLException throws an exception if an SQL error occured while building the index
+     */
+    static int countByTags(String category, Collection<String> allOf, Collection<String> anyOf,
+                           String startTime, String endTime) throws SQLException {
+        return getTagIndex().select(category, allOf, anyOf, startTime, endTime).cardinality();
+    }
+
+    /**
+     * Sum the expenses matching the given category, tags and time range, using only the tag index.
+     *
+     * @param category category the rows must belong to, may be null
+     * @param allOf tags that all must be present on the row, may be null
+     * @param anyOf tags from which at least one must be present on the row, may be null
+     * @param startTime start time for filtering, may be empty
+     * @param endTime end time for filtering, may be empty
+     * @return sum of the matching expenses
+     * @throws SQLException throws an exception if an SQL error occured while building the index
+     */
+    static double sumByTags(String category, Collection<String> allOf, Collection<String> anyOf,
+                            String startTime, String endTime) throws SQLException {
+        TagIndex index = getTagIndex();
+        return index.sum(index.select(category, allOf, anyOf, startTime, endTime));
+    }
+
+    /**
+     * Read all the data from the database, archived rows included.
      *
      * @return an Object[][] that contains the rows as arrays.
      * @throws SQLException throws an exception if an SQL error occured
      */
     static Object[][] readAll() throws SQLException {
-        List<Expense> expenses = expenseDao.queryForAll();
+        List<Expense> expenses = new ArrayList<>();
+
+        tierLock.readLock().lock();
+        try {
+            forEachArchivedRow(expenses::add);
+            expenses.addAll(expenseDao.queryForAll());
+        } finally {
+            tierLock.readLock().unlock();
+        }
 
         LOGGER.log(Level.FINE, "Reading the values from the database.");
 
+        return toRows(expenses);
+    }
+
+    /**
+     * Read the rows not archived yet, without touching the archive.
+     *
+     * @return an Object[][] that contains the rows as arrays.
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    static Object[][] readRecent() throws SQLException {
+        List<Expense> expenses = expenseDao.queryForAll();
+
+        LOGGER.log(Level.FINE, "Reading the recent values from the database.");
+
         Object[][] tempList = new Object[expenses.size()][];
         for (int i = 0, expensesSize = expenses.size(); i < expensesSize; i++) {
             tempList[i] = expenses.get(i).getObject();
@@ -83,7 +1195,149 @@ public class DatabaseConnection {
     }
 
     /**
-     * Read the last recorded expense.
+     * Read the rows between two times using the index of the time column. The stored time format sorts
+     * lexicographically in time order, so the bounds are compared as strings. Only the archive segments
+     * overlapping the range are decompressed.
+     *
+     * @param startTime start time for filtering, inclusive, may be empty
+     * @param endTime end time for filtering, exclusive, may be empty
+     * @return an Object[][] that contains the rows as arrays.
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    static Object[][] readRange(String startTime, String endTime) throws SQLException {
+        List<Expense> expenses = readRangeExpenses(startTime, endTime);
+
+        LOGGER.log(Level.FINE, "Reading {0} values of a range from the database.", expenses.size());
+
+        return toRows(expenses);
+    }
+
+    /**
+     * Helper function to read the expenses of both tiers between two times.
+     *
+     * @param startTime start time for filtering, inclusive, may be empty
+     * @param endTime end time for filtering, exclusive, may be empty
+     * @return the expenses, not ordered
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    private static List<Expense> readRangeExpenses(String startTime, String endTime) throws SQLException {
+        QueryBuilder<Expense, Integer> queryBuilder = expenseDao.queryBuilder();
+        Where<Expense, Integer> where = queryBuilder.where();
+        where.isNotNull(Expense.TIME_FIELD_NAME);
+
+        if (startTime != null && !startTime.isEmpty()) {
+            where.and().ge(Expense.TIME_FIELD_NAME, startTime);
+        }
+        if (endTime != null && !endTime.isEmpty()) {
+            where.and().lt(Expense.TIME_FIELD_NAME, endTime);
+        }
+
+        tierLock.readLock().lock();
+        try {
+            List<Expense> expenses = readArchivedRange(startTime, endTime);
+            expenses.addAll(queryBuilder.query());
+            return expenses;
+        } finally {
+            tierLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Load the budgets into the budget monitor with the rows of their periods. Writes are held back meanwhile,
+     * so that no row is missed or counted twice.
+     */
+    static void loadBudgets() {
+        synchronized (writeLock) {
+            try {
+                List<Budget> budgets = budgetDao.queryForAll();
+                List<Expense> recent = budgets.isEmpty() ? Collections.emptyList() : readRangeExpenses(
+                        BudgetMonitor.getInstance().windowStart(budgets, System.currentTimeMillis()), "");
+                recent.sort(BY_ID);
+
+                BudgetMonitor.getInstance().load(budgets, recent);
+            } catch (SQLException e) {
+                LOGGER.log(Level.SEVERE, "Could not load the budgets. {0}", e.toString());
+            }
+        }
+    }
+
+    /**
+     * Store a budget and start monitoring it.
+     *
+     * @param budget the budget
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    static void createBudget(Budget budget) throws SQLException {
+        budgetDao.create(budget);
+        loadBudgets();
+    }
+
+    /**
+     * Delete a budget and stop monitoring it.
+     *
+     * @param id id of the budget
+     * @return true if the budget existed
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    static boolean deleteBudget(int id) throws SQLException {
+        boolean deleted = budgetDao.deleteById(id) > 0;
+        loadBudgets();
+        return deleted;
+    }
+
+    /**
+     * Read the rows of a day using the index of the time column.
+     *
+     * @param day the day in the yyyy/MM/dd format
+     * @return an Object[][] that contains the rows as arrays.
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    static Object[][] readDay(String day) throws SQLException {
+        List<Expense> expenses = new ArrayList<>();
+
+        tierLock.readLock().lock();
+        try {
+            ArchiveSegment segment = archiveDao.queryBuilder().where()
+                    .eq(ArchiveSegment.MONTH_FIELD_NAME, day.substring(0, Math.min(day.length(), "yyyy/MM".length())))
+                    .queryForFirst();
+
+            if (segment != null) {
+                for (Expense expense : segment.getRows()) {
+                    if (expense.getTime().startsWith(day + " ")) {
+                        expenses.add(expense);
+                    }
+                }
+            }
+
+            expenses.addAll(expenseDao.queryBuilder().where()
+                    .between(Expense.TIME_FIELD_NAME, day + " 00:00:00", day + " 23:59:59").query());
+        } finally {
+            tierLock.readLock().unlock();
+        }
+
+        return toRows(expenses);
+    }
+
+    /**
+     * Helper function to order rows of both tiers by id and convert them to arrays.
+     *
+     * @param expenses the rows
+     * @return an Object[][] that contains the rows as arrays.
+     */
+    private static Object[][] toRows(List<Expense> expenses) {
+        expenses.sort(BY_ID);
+
+        Object[][] tempList = new Object[expenses.size()][];
+        for (int i = 0, expensesSize = expenses.size(); i < expensesSize; i++) {
+            tempList[i] = expenses.get(i).getObject();
+        }
+
+        return tempList;
+    }
+
+    /**
+     * Read the last recorded expense. If the row with the highest id is archived, e.g. an old row synced in
+     * late, it is read from the newest archive segment, whose closing balance the ledger continues from.
      *
      * @return last (and latest) row of the database
      * @throws SQLException throws an exception if an SQL error occured
@@ -92,7 +1346,24 @@ public class DatabaseConnection {
         String tableName = DatabaseTableConfig.extractTableName(Expense.class);
         String selectQuery = "SELECT MAX(id) FROM " + tableName + ";";
 
-        Expense lastExpense = readOneById((int) expenseDao.queryRawValue(selectQuery));
+        Expense lastExpense;
+
+        tierLock.readLock().lock();
+        try {
+            int lastId = (int) expenseDao.queryRawValue(selectQuery);
+            int lastArchivedId = (int) archiveDao.queryRawValue("SELECT MAX(`" + ArchiveSegment.LAST_ID_FIELD_NAME
+                    + "`) FROM `" + DatabaseTableConfig.extractTableName(ArchiveSegment.class) + "`;");
+
+            if (lastArchivedId > lastId) {
+                ArchiveSegment segment = archiveDao.queryBuilder().where()
+                        .eq(ArchiveSegment.LAST_ID_FIELD_NAME, lastArchivedId).queryForFirst();
+                lastExpense = segment.getClosingRow();
+            } else {
+                lastExpense = readOneById(lastId);
+            }
+        } finally {
+            tierLock.readLock().unlock();
+        }
 
         LOGGER.log(Level.FINE, "Reading last value from the database.");
 
@@ -111,12 +1382,35 @@ public class DatabaseConnection {
     }
 
 
+    /**
+     * Receives the rows read from the archive.
+     */
+    private interface ExpenseConsumer {
+        void accept(Expense expense) throws SQLException;
+    }
+
+    /**
+     * Read the data version of the database, which changes when another process commits to the database file.
+     * The commits of this process leave it unchanged.
+     *
+     * @return the data version of the database
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    static long readDataVersion() throws SQLException {
+        return expenseDao.queryRawValue("PRAGMA data_version;");
+    }
+
     /**
      * Checks if the connection is open to the database.
      *
      * @return true if it is open, false if not.
      */
     static boolean isConnected() {
+        if (connectionSource == null) {
+            LOGGER.log(Level.FINE, "The database was not initialized.");
+            return false;
+        }
+
         LOGGER.log(Level.FINE, "Connection to the database: {0}.", connectionSource.isOpen(
                 DatabaseTableConfig.extractTableName(Expense.class)));
 
@@ -0,0 +1,182 @@
+package hu.benjaminteke.expensecalculator.datamodel;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bloom filter of the stored idempotency keys, in front of the indexed key lookup. A key the filter has never
+ * seen is certainly new, so most new keys are accepted without a database round trip, and only the few false
+ * positives and the real duplicates are looked up.
+ * <p>
+ * Loading the filter reads every stored key, so it is only loaded once a process has looked up enough keys to
+ * make up for it, e.g. on a large import or in a long running GUI or server. Until then it can not rule out any
+ * key and every key is looked up by the primary key, so a single write from the command line costs one indexed
+ * lookup instead of a scan of the key table.
+ * <p>
+ * The filter grows by adding a filter of twice the capacity when the last one is full, so it is never rebuilt
+ * and its false positive rate stays low however many keys are written after it was loaded. It is not thread
+ * safe, it is used under the write lock of the database.
+ */
+class DuplicateFilter {
+
+    /**
+     * False positive probability of each filter.
+     */
+    private final static double FALSE_POSITIVE_RATE = 0.01;
+
+    private final static int MIN_CAPACITY = 1 << 16;
+
+    /**
+     * Number of keys looked up without the filter before it is loaded.
+     */
+    private final static long LOAD_AFTER_LOOKUPS = 50_000;
+
+    /**
+     * Number of recently written times and values whose next free occurrence is remembered.
+     */
+    private final static int RECENT_CONTENTS = 1024;
+
+    private final List<BloomFilter<CharSequence>> filters = new ArrayList<>();
+
+    /**
+     * Next free occurrence of the content keys of recently written times and values, so that a burst of equal
+     * rows in one second does not look up every taken occurrence again. Keys are never removed, so a remembered
+     * occurrence stays taken.
+     */
+    private final Map<String, Integer> nextOccurrences = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > RECENT_CONTENTS;
+        }
+    };
+
+    private int capacity;
+    private int filled;
+    private long size;
+    private long lookups;
+    private long duplicates;
+    private long unfilteredLookups;
+
+    /**
+     * Check whether the filter is loaded with the stored keys.
+     *
+     * @return false if every key has to be looked up
+     */
+    boolean isLoaded() {
+        return !filters.isEmpty();
+    }
+
+    /**
+     * Check whether enough keys were looked up without the filter to load it.
+     *
+     * @return true if the filter should be loaded
+     */
+    boolean shouldLoad() {
+        return !isLoaded() && unfilteredLookups >= LOAD_AFTER_LOOKUPS;
+    }
+
+    /**
+     * Prepare the filter to be loaded with the stored keys, which are then added with {@link #put(String)}.
+     *
+     * @param expectedKeys the number of stored keys
+     */
+    void load(long expectedKeys) {
+        grow((int) Math.min(Integer.MAX_VALUE / 2, Math.max(MIN_CAPACITY, expectedKeys * 2)));
+    }
+
+    /**
+     * Check whether a key may have been stored.
+     *
+     * @param key the key
+     * @return false if the key is certainly new, true if it has to be looked up
+     */
+    boolean mightContain(String key) {
+        if (!isLoaded()) {
+            return true;
+        }
+        for (BloomFilter<CharSequence> filter : filters) {
+            if (filter.mightContain(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add a stored key.
+     *
+     * @param key the key
+     */
+    void put(String key) {
+        if (!isLoaded()) {
+            return;
+        }
+        if (filled >= capacity) {
+            grow((int) Math.min(Integer.MAX_VALUE, capacity * 2L));
+        }
+        filters.get(filters.size() - 1).put(key);
+        filled++;
+        size++;
+    }
+
+    /**
+     * Get the first occurrence of a time and value that may still be free.
+     *
+     * @param content the time and the value
+     * @return the occurrence to try first
+     */
+    int nextOccurrence(String content) {
+        return nextOccurrences.getOrDefault(content, 1);
+    }
+
+    /**
+     * Record a written content key.
+     *
+     * @param content    the time and the value
+     * @param occurrence the occurrence of the key
+     */
+    void taken(String content, int occurrence) {
+        nextOccurrences.merge(content, occurrence + 1, Math::max);
+    }
+
+    /**
+     * Record the result of a key lookup the filter could not spare.
+     *
+     * @param duplicate whether the key was stored
+     */
+    void looked(boolean duplicate) {
+        if (!isLoaded()) {
+            unfilteredLookups++;
+            return;
+        }
+        lookups++;
+        if (duplicate) {
+            duplicates++;
+        }
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * Get the number of keys that had to be looked up although they were new.
+     *
+     * @return the false positives so far
+     */
+    long getFalsePositives() {
+        return lookups - duplicates;
+    }
+
+    private void grow(int newCapacity) {
+        filters.add(BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), newCapacity, FALSE_POSITIVE_RATE));
+        capacity = newCapacity;
+        filled = 0;
+    }
+}
@@ -3,18 +3,22 @@ package hu.benjaminteke.expensecalculator.datamodel;
 import com.j256.ormlite.field.DatabaseField;
 import com.j256.ormlite.table.DatabaseTable;
 
+import java.util.Collection;
+import java.util.Locale;
+
 @DatabaseTable(tableName = "expenses")
 public class Expense {
 
     // for QueryBuilder to be able to find the fields
-    private static final String TIME_FIELD_NAME = "timeOfExpense";
-    private static final String EXPENSE_FIELD_NAME = "expense";
-    private static final String BALANCE_FIELD_NAME = "balance";
+    static final String TIME_FIELD_NAME = "timeOfExpense";
+    static final String EXPENSE_FIELD_NAME = "expense";
+    static final String BALANCE_FIELD_NAME = "balance";
+    static final String CATEGORY_FIELD_NAME = "category";
 
     @DatabaseField(generatedId = true)
     private int id;
 
-    @DatabaseField(columnName = TIME_FIELD_NAME)
+    @DatabaseField(columnName = TIME_FIELD_NAME, index = true)
     private String time;
 
     @DatabaseField(columnName = EXPENSE_FIELD_NAME)
@@ -23,6 +27,15 @@ public class Expense {
     @DatabaseField(columnName = BALANCE_FIELD_NAME)
     private Double balance;
 
+    @DatabaseField(columnName = CATEGORY_FIELD_NAME, index = true)
+    private String category;
+
+    // not a column of this table, the tags are stored in expense_tags
+    private Collection<String> tags;
+
+    // not a column of this table, the idempotency key is stored in expense_keys
+    private String key;
+
     Expense() {
         // all persisted classes must define a no-arg constructor with at least package visibility
     }
@@ -33,11 +46,70 @@ public class Expense {
         this.balance = balance;
     }
 
+    public Expense(String timeOfExpense, Double expense, Double balance, String category) {
+        this(timeOfExpense, expense, balance);
+        this.category = category;
+    }
+
+    Expense(int id, String timeOfExpense, Double expense, Double balance, String category) {
+        this(timeOfExpense, expense, balance, category);
+        this.id = id;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    String getTime() {
+        return time;
+    }
+
+    Double getExpense() {
+        return expense;
+    }
+
     Double getBalance() {
         return balance;
     }
 
+    void setBalance(Double balance) {
+        this.balance = balance;
+    }
+
+    String getCategory() {
+        return category;
+    }
+
+    Collection<String> getTags() {
+        return tags;
+    }
+
+    void setTags(Collection<String> tags) {
+        this.tags = tags;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    void setKey(String key) {
+        this.key = key;
+    }
+
     Object[] getObject() {
         return new Object[]{this.time, this.expense, this.balance};
     }
-}
\ No newline at end of file
+
+    /**
+     * Normalize a category or a tag, so that "Food " and "food" are the same label.
+     *
+     * @param label label to normalize
+     * @return the normalized label or null if it is empty
+     */
+    static String normalizeLabel(String label) {
+        if (label == null || label.trim().isEmpty()) {
+            return null;
+        }
+        return label.trim().toLowerCase(Locale.ROOT);
+    }
+}
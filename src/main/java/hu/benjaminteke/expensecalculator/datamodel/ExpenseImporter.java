@@ -0,0 +1,430 @@
+package hu.benjaminteke.expensecalculator.datamodel;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Imports bank exports into the database.
+ * <p>
+ * The file is streamed through a bounded pipeline: records are read in chunks on the calling thread, the chunks
+ * are parsed and validated in parallel, and the parsed chunks are keyed and written in file order, one
+ * transaction per chunk. Only a fixed number of chunks is in flight at any time, so the memory used for the file
+ * does not depend on its size.
+ * <p>
+ * Each row gets the content key of its time, its value and its occurrence among the rows of the same time
+ * and value in the file. Bank exports are ordered by date, either way, so the occurrences are only counted for
+ * the last few days of the file read so far. The database skips the keys it already stores, looking them up by
+ * their index, so importing the same export again, or one overlapping it, only writes the new rows.
+ * <p>
+ * CSV records are expected as {@code date, amount[, category[, tags]]}, where the tags are separated by '|'.
+ * OFX records are the {@code <STMTTRN>} blocks of the statement, using {@code DTPOSTED} and {@code TRNAMT}.
+ */
+public class ExpenseImporter {
+    private final static Logger LOGGER = Logger.getLogger(ExpenseImporter.class.getName());
+
+    /**
+     * Date time format to convert between string and timestamp.
+     */
+    private final static String STORED_DATE_PATTERN = "yyyy/MM/dd HH:mm:ss";
+
+    /**
+     * Number of records parsed and written together.
+     */
+    private final static int CHUNK_SIZE = 1000;
+
+    /**
+     * Number of days whose occurrences are counted, so that a file out of order by a few days is still keyed
+     * the same way on every import.
+     */
+    private final static int RECENT_DAYS = 31;
+
+    private final static Pattern OFX_DATE = Pattern.compile("<DTPOSTED>\\s*(\\d{8,14})");
+    private final static Pattern OFX_AMOUNT = Pattern.compile("<TRNAMT>\\s*([-+]?[0-9.,]+)");
+
+    /**
+     * Supported file formats.
+     */
+    public enum Format {
+        CSV, OFX
+    }
+
+    private final Format format;
+    private final char delimiter;
+    private final String datePattern;
+    private final boolean skipHeader;
+    private final int parserThreads;
+
+    /**
+     * Create an importer.
+     *
+     * @param format      format of the files to import
+     * @param delimiter   field delimiter of CSV files
+     * @param datePattern SimpleDateFormat pattern of the dates in CSV files
+     * @param skipHeader  whether the first line of CSV files is a header
+     */
+    public ExpenseImporter(Format format, char delimiter, String datePattern, boolean skipHeader) {
+        this.format = format;
+        this.delimiter = delimiter;
+        this.datePattern = datePattern;
+        this.skipHeader = skipHeader;
+        this.parserThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    }
+
+    /**
+     * Import a file into the database. Rows whose content key is already stored are skipped, so importing
+     * the same export twice does not duplicate it. The spreadsheet is updated by the next sync.
+     *
+     * @param fileName path of the file to import
+     * @return counters of the import
+     * @throws IOException throws an error if the file can not be read or the database is not available
+     */
+    public ImportResult importFile(String fileName) throws IOException {
+        if (!DatabaseConnection.isConnected()) {
+            throw new IOException("The database is not available.");
+        }
+
+        ImportResult result = new ImportResult();
+        ExecutorService parsers = Executors.newFixedThreadPool(parserThreads);
+        Deque<Future<ParsedChunk>> inFlight = new ArrayDeque<>();
+
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(fileName), StandardCharsets.UTF_8)) {
+            Map<String, Map<String, Integer>> occurrences = new LinkedHashMap<String, Map<String, Integer>>(
+                    16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Map<String, Integer>> eldest) {
+                    return size() > RECENT_DAYS;
+                }
+            };
+
+            if (format == Format.CSV && skipHeader) {
+                reader.readLine();
+            }
+
+            List<String> records = new ArrayList<>(CHUNK_SIZE);
+            String record;
+
+            while ((record = nextRecord(reader)) != null) {
+                records.add(record);
+                result.read++;
+
+                if (records.size() == CHUNK_SIZE) {
+                    inFlight.add(submit(parsers, records, result.read - records.size()));
+                    records = new ArrayList<>(CHUNK_SIZE);
+
+                    if (inFlight.size() > parserThreads * 2) {
+                        write(inFlight.poll(), occurrences, result);
+                    }
+                }
+            }
+
+            if (!records.isEmpty()) {
+                inFlight.add(submit(parsers, records, result.read - records.size()));
+            }
+
+            while (!inFlight.isEmpty()) {
+                write(inFlight.poll(), occurrences, result);
+            }
+        } catch (SQLException s) {
+            throw new IOException("Could not write the imported rows to the database.", s);
+        } finally {
+            parsers.shutdownNow();
+        }
+
+        LOGGER.log(Level.INFO, "Import of {0} done. {1}", new Object[]{fileName, result});
+
+        return result;
+    }
+
+    /**
+     * Read the next record from the file.
+     *
+     * @param reader reader of the file
+     * @return the next record or null at the end of the file
+     * @throws IOException throws an error if the file can not be read
+     */
+    private String nextRecord(BufferedReader reader) throws IOException {
+        String line;
+
+        if (format == Format.CSV) {
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    return line;
+                }
+            }
+            return null;
+        }
+
+        StringBuilder transaction = null;
+        while ((line = reader.readLine()) != null) {
+            if (line.contains("<STMTTRN>")) {
+                transaction = new StringBuilder();
+            }
+            if (transaction != null) {
+                transaction.append(line).append('\n');
+
+                if (line.contains("</STMTTRN>")) {
+                    return transaction.toString();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Submit a chunk of records to be parsed.
+     *
+     * @param parsers     the executor of the parsers
+     * @param records     records of the chunk
+     * @param firstRecord index of the first record in the file, for the error messages
+     * @return future of the parsed chunk
+     */
+    private Future<ParsedChunk> submit(ExecutorService parsers, List<String> records, int firstRecord) {
+        return parsers.submit(() -> {
+            ParsedChunk chunk = new ParsedChunk(records.size());
+            SimpleDateFormat stored = new SimpleDateFormat(STORED_DATE_PATTERN);
+            SimpleDateFormat csvDate = new SimpleDateFormat(datePattern);
+            csvDate.setLenient(false);
+
+            for (int i = 0; i < records.size(); i++) {
+                try {
+                    chunk.expenses.add(format == Format.CSV
+                            ? parseCsv(records.get(i), csvDate, stored)
+                            : parseOfx(records.get(i), stored));
+                } catch (ParseException | IllegalArgumentException e) {
+                    chunk.invalid++;
+                    LOGGER.log(Level.WARNING, "Skipping invalid record {0}: {1}",
+                            new Object[]{String.valueOf(firstRecord + i + 1), e.getMessage()});
+                }
+            }
+            return chunk;
+        });
+    }
+
+    /**
+     * Key a parsed chunk and write it in one transaction, skipping the rows whose keys are already stored.
+     *
+     * @param future      future of the parsed chunk
+     * @param occurrences count of the rows of the recent days of the file, by their day, time and value
+     * @param result      counters of the import
+     * @throws IOException  throws an error if the parsing failed unexpectedly
+     * @throws SQLException throws an exception if an SQL error occured
+     */
+    private static void write(Future<ParsedChunk> future, Map<String, Map<String, Integer>> occurrences,
+                              ImportResult result) throws IOException, SQLException {
+        ParsedChunk chunk;
+        try {
+            chunk = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted.", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not parse the file.", e.getCause());
+        }
+
+        result.invalid += chunk.invalid;
+
+        for (Expense expense : chunk.expenses) {
+            String day = expense.getTime().substring(0, "yyyy/MM/dd".length());
+            int occurrence = occurrences.computeIfAbsent(day, d -> new HashMap<>())
+                    .merge(expense.getTime() + "|" + expense.getExpense(), 1, Integer::sum);
+            expense.setKey(ExpenseKey.ofContent(expense.getTime(), expense.getExpense(), occurrence));
+        }
+
+        if (!chunk.expenses.isEmpty()) {
+            int written = DatabaseConnection.writeBatch(chunk.expenses).size();
+            result.imported += written;
+            result.duplicates += chunk.expenses.size() - written;
+        }
+    }
+
+    /**
+     * Parse a CSV record.
+     *
+     * @param record  the line to parse
+     * @param csvDate format of the dates in the file
+     * @param stored  format of the stored dates
+     * @return the parsed expense without balance
+     * @throws ParseException throws an error if the date is invalid
+     */
+    private Expense parseCsv(String record, SimpleDateFormat csvDate, SimpleDateFormat stored) throws ParseException {
+        List<String> fields = splitCsv(record);
+
+        if (fields.size() < 2) {
+            throw new IllegalArgumentException("Expected at least a date and an amount.");
+        }
+
+        String time = stored.format(csvDate.parse(fields.get(0).trim()));
+        Expense expense = new Expense(time, parseAmount(fields.get(1)), null,
+                fields.size() > 2 && !fields.get(2).trim().isEmpty() ? fields.get(2).trim() : null);
+
+        if (fields.size() > 3 && !fields.get(3).trim().isEmpty()) {
+            expense.setTags(Arrays.asList(fields.get(3).trim().split("\\s*\\|\\s*")));
+        }
+
+        return expense;
+    }
+
+    /**
+     * Parse an OFX transaction block.
+     *
+     * @param record the block to parse
+     * @param stored format of the stored dates
+     * @return the parsed expense without balance
+     * @throws ParseException throws an error if the date is invalid
+     */
+    private static Expense parseOfx(String record, SimpleDateFormat stored) throws ParseException {
+        Matcher date = OFX_DATE.matcher(record);
+        Matcher amount = OFX_AMOUNT.matcher(record);
+
+        if (!date.find() || !amount.find()) {
+            throw new IllegalArgumentException("Expected DTPOSTED and TRNAMT.");
+        }
+
+        String dateString = date.group(1);
+        SimpleDateFormat ofxDate = new SimpleDateFormat(dateString.length() >= 14 ? "yyyyMMddHHmmss" : "yyyyMMdd");
+        ofxDate.setLenient(false);
+
+        String time = stored.format(ofxDate.parse(dateString.length() >= 14
+                ? dateString.substring(0, 14) : dateString.substring(0, 8)));
+
+        return new Expense(time, parseAmount(amount.group(1)), null);
+    }
+
+    /**
+     * Helper function to parse amounts written either with a decimal point or with a decimal comma, with or
+     * without thousands separators, e.g. {@code 1,234.56} or the {@code 1.234,56} of European bank exports.
+     * If both separators are used, the last one is the decimal separator. A single separator followed by three
+     * digits could be either, so such amounts are rejected rather than guessed. Only digits, a sign and the
+     * separators are accepted, so NaN, Infinity or exponents are invalid.
+     *
+     * @param amount the amount string
+     * @return the parsed amount
+     * @throws IllegalArgumentException throws an error if the amount is invalid or ambiguous
+     */
+    private static Double parseAmount(String amount) {
+        String cleaned = amount.trim().replace(" ", "").replace("\u00a0", "");
+        int lastComma = cleaned.lastIndexOf(',');
+        int lastPoint = cleaned.lastIndexOf('.');
+
+        char decimal;
+        if (lastComma < 0 && lastPoint < 0) {
+            decimal = '.';
+        } else if (lastComma >= 0 && lastPoint >= 0) {
+            decimal = lastComma > lastPoint ? ',' : '.';
+        } else {
+            char separator = lastComma >= 0 ? ',' : '.';
+            int last = Math.max(lastComma, lastPoint);
+
+            if (cleaned.indexOf(separator) != last) {
+                // repeated, so it separates the thousands
+                decimal = separator == ',' ? '.' : ',';
+            } else if (cleaned.length() - last - 1 == 3) {
+                throw new IllegalArgumentException("Ambiguous amount " + amount
+                        + ", the separator may be a decimal or a thousands separator.");
+            } else {
+                decimal = separator;
+            }
+        }
+
+        String grouping = decimal == ',' ? "\\." : ",";
+        String decimalPattern = decimal == ',' ? "," : "\\.";
+        if (!cleaned.matches("[-+]?(\\d{1,3}(" + grouping + "\\d{3})*|\\d+)(" + decimalPattern + "\\d+)?")) {
+            throw new IllegalArgumentException("Not a valid amount: " + amount);
+        }
+
+        double parsed = Double.parseDouble(cleaned.replace(decimal == ',' ? "." : ",", "").replace(decimal, '.'));
+        if (Double.isInfinite(parsed)) {
+            throw new IllegalArgumentException("Not a finite amount: " + amount);
+        }
+        return parsed;
+    }
+
+    /**
+     * Split a CSV line on the delimiter, honoring double quoted fields.
+     *
+     * @param line the line to split
+     * @return the fields of the line
+     */
+    private List<String> splitCsv(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+
+            if (c == '"') {
+                if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == delimiter && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+
+        return fields;
+    }
+
+    /**
+     * Result of a parsing task.
+     */
+    private static class ParsedChunk {
+        private final List<Expense> expenses;
+        private int invalid;
+
+        ParsedChunk(int size) {
+            this.expenses = new ArrayList<>(size);
+        }
+    }
+
+    /**
+     * Counters of an import.
+     */
+    public static class ImportResult {
+        private int read;
+        private int imported;
+        private int duplicates;
+        private int invalid;
+
+        public int getRead() {
+            return read;
+        }
+
+        public int getImported() {
+            return imported;
+        }
+
+        public int getDuplicates() {
+            return duplicates;
+        }
+
+        public int getInvalid() {
+            return invalid;
+        }
+
+        @Override
+        public String toString() {
+            return "Read: " + read + ", imported: " + imported + ", duplicates: " + duplicates
+                    + ", invalid: " + invalid + ".";
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package hu.benjaminteke.expensecalculator.datamodel;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * Idempotency key of a stored expense. The keys are kept in their own table, indexed by the primary key, and
+ * stay there when the expense is archived, so a retried write is recognized whichever tier the row is in.
+ * <p>
+ * A write either carries the key given by its source, e.g. a client retrying a request, or gets a content key
+ * of its time, its value and its occurrence among the rows of the same time and value. Imports and syncs derive
+ * the same content keys from the rows of the file or the spreadsheet, so writing them again is a no-op.
+ */
+@DatabaseTable(tableName = "expense_keys")
+class ExpenseKey {
+
+    // for QueryBuilder to be able to find the fields
+    static final String KEY_FIELD_NAME = "idempotencyKey";
+    static final String EXPENSE_ID_FIELD_NAME = "expenseId";
+
+    @DatabaseField(columnName = KEY_FIELD_NAME, id = true)
+    private String key;
+
+    @DatabaseField(columnName = EXPENSE_ID_FIELD_NAME)
+    private int expenseId;
+
+    ExpenseKey() {
+        // all persisted classes must define a no-arg constructor with at least package visibility
+    }
+
+    ExpenseKey(String key, int expenseId) {
+        this.key = key;
+        this.expenseId = expenseId;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    int getExpenseId() {
+        return expenseId;
+    }
+
+    /**
+     * Create the content key of a row.
+     *
+     * @param time       formatted time of the expense
+     * @param expense    value of the expense
+     * @param occurrence 1 for the first row of this time and value, 2 for the second and so on
+     * @return the key
+     */
+    static String ofContent(String time, Double expense, int occurrence) {
+        return "row:" + time + "|" + expense + "#" + occurrence;
+    }
+
+    /**
+     * Create the key of a row written by a client, kept apart from the content keys.
+     *
+     * @param key the key given by the client
+     * @return the key
+     */
+    static String ofClient(String key) {
+        return "client:" + key;
+    }
+}
@@ -0,0 +1,30 @@
+package hu.benjaminteke.expensecalculator.datamodel;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+@DatabaseTable(tableName = "expense_tags")
+class ExpenseTag {
+
+    // for QueryBuilder to be able to find the fields
+    static final String EXPENSE_ID_FIELD_NAME = "expenseId";
+    static final String TAG_FIELD_NAME = "tag";
+
+    @DatabaseField(generatedId = true)
+    private int id;
+
+    @DatabaseField(columnName = EXPENSE_ID_FIELD_NAME, index = true)
+    private int expenseId;
+
+    @DatabaseField(columnName = TAG_FIELD_NAME, index = true)
+    private String tag;
+
+    ExpenseTag() {
+        // all persisted classes must define a no-arg constructor with at least package visibility
+    }
+
+    ExpenseTag(int expenseId, String tag) {
+        this.expenseId = expenseId;
+        this.tag = tag;
+    }
+}
@@ -0,0 +1,171 @@
+package hu.benjaminteke.expensecalculator.datamodel;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Digest tree of a ledger, partitioned by month and day.
+ * <p>
+ * Every row hashes its time and value. A day's digest is the sum of its row hashes, a month's digest is the
+ * sum of its days and the root is the sum of the months. Sums are independent of the row order and can be
+ * updated one row at a time, so the database side is maintained on every write instead of rebuilt. Two
+ * ledgers holding the same rows have the same root, and a differing root can be narrowed down to the
+ * differing days by descending the months first.
+ */
+class LedgerDigest {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    /**
+     * Date time format to convert between string and timestamp.
+     */
+    private final SimpleDateFormat dtf = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+
+    private final Calendar calendar = Calendar.getInstance();
+
+    private final TreeMap<Integer, Long> months = new TreeMap<>();
+    private final TreeMap<Integer, Long> days = new TreeMap<>();
+    private long root;
+
+    /**
+     * Build the digest of rows.
+     *
+     * @param rows rows of the time and the value of the expense
+     * @return the digest
+     */
+    static LedgerDigest of(Object[][] rows) {
+        LedgerDigest digest = new LedgerDigest();
+        for (Object[] row : rows) {
+            if (row.length > 1 && row[0] != null) {
+                digest.add(row[0].toString(), row[1]);
+            }
+        }
+        return digest;
+    }
+
+    /**
+     * Add a row to the digest.
+     *
+     * @param time    formatted time of the expense
+     * @param expense value of the expense, a number or its string form
+     */
+    synchronized void add(String time, Object expense) {
+        long millis = parseTime(time);
+        if (millis == Long.MIN_VALUE || expense == null) {
+            return;
+        }
+
+        long hash = rowHash(millis, Double.parseDouble(expense.toString()));
+        int day = dayOf(millis);
+
+        days.merge(day, hash, Long::sum);
+        months.merge(day / 100, hash, Long::sum);
+        root += hash;
+    }
+
+    /**
+     * Get the root digest.
+     *
+     * @return the sum of every row hash
+     */
+    synchronized long root() {
+        return root;
+    }
+
+    /**
+     * Find the days whose digests differ, descending only into the months that differ.
+     *
+     * @param other the digest to compare with
+     * @return the differing days as yyyyMMdd numbers
+     */
+    List<Integer> differingDays(LedgerDigest other) {
+        TreeMap<Integer, Long> ownMonths;
+        TreeMap<Integer, Long> ownDays;
+        TreeMap<Integer, Long> otherMonths;
+        TreeMap<Integer, Long> otherDays;
+
+        synchronized (this) {
+            ownMonths = new TreeMap<>(months);
+            ownDays = new TreeMap<>(days);
+        }
+        synchronized (other) {
+            otherMonths = new TreeMap<>(other.months);
+            otherDays = new TreeMap<>(other.days);
+        }
+
+        Set<Integer> allMonths = new TreeSet<>(ownMonths.keySet());
+        allMonths.addAll(otherMonths.keySet());
+
+        List<Integer> result = new ArrayList<>();
+        for (Integer month : allMonths) {
+            if (ownMonths.getOrDefault(month, 0L).equals(otherMonths.getOrDefault(month, 0L))) {
+                continue;
+            }
+
+            Set<Integer> monthDays = new TreeSet<>(ownDays.subMap(month * 100, month * 100 + 100).keySet());
+            monthDays.addAll(otherDays.subMap(month * 100, month * 100 + 100).keySet());
+
+            for (Integer day : monthDays) {
+                if (!ownDays.getOrDefault(day, 0L).equals(otherDays.getOrDefault(day, 0L))) {
+                    result.add(day);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the day partition of a formatted time.
+     *
+     * @param time formatted time of the expense
+     * @return the day as a yyyyMMdd number, or -1 if the time is invalid
+     */
+    synchronized int dayOf(String time) {
+        long millis = parseTime(time);
+        return millis == Long.MIN_VALUE ? -1 : dayOf(millis);
+    }
+
+    /**
+     * Get a key identifying a row by its time and value, equal for the same row on both sides.
+     *
+     * @param time    formatted time of the expense
+     * @param expense value of the expense, a number or its string form
+     * @return the key of the row
+     */
+    synchronized String rowKey(String time, Object expense) {
+        return parseTime(time) + "|" + Double.parseDouble(expense.toString());
+    }
+
+    /**
+     * Helper function to hash a row.
+     *
+     * @param millis  time of the expense
+     * @param expense value of the expense
+     * @return the hash of the row
+     */
+    private static long rowHash(long millis, double expense) {
+        return HASH.newHasher()
+                .putLong(millis)
+                .putDouble(expense)
+                .hash()
+                .asLong();
+    }
+
+    private int dayOf(long millis) {
+        calendar.setTimeInMillis(millis);
+        return calendar.get(Calendar.YEAR) * 10000 + (calendar.get(Calendar.MONTH) + 1) * 100
+                + calendar.get(Calendar.DAY_OF_MONTH);
+    }
+
+    private long parseTime(String time) {
+        try {
+            return dtf.parse(time).getTime();
+        } catch (ParseException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package hu.benjaminteke.expensecalculator.datamodel;
+
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Single writer of the ledger. Any number of producers submit expenses to a bounded queue, and one writer
+ * thread drains whatever has accumulated, assigns the balances in queue order and commits the whole group
+ * in one transaction. Producers get a future of the written row.
+ * <p>
+ * Because only this thread computes balances, concurrent writers can no longer read the same previous
+ * balance, and under load many writes share the cost of one commit. A retried request carrying the key of a
+ * written one is not written again, its future gets the stored row.
+ * <p>
+ * Requests are validated before they are queued, and if a group still fails, its requests are written again
+ * one by one, so a bad request only fails its own producer and not the others it was grouped with.
+ */
+class LedgerSequencer {
+    private final static Logger LOGGER = Logger.getLogger(LedgerSequencer.class.getName());
+
+    /**
+     * Number of expenses waiting to be written before producers block.
+     */
+    private final static int QUEUE_CAPACITY = 4096;
+
+    /**
+     * Maximum number of expenses committed in one transaction.
+     */
+    private final static int MAX_BATCH_SIZE = 512;
+
+    /**
+     * Date time format to convert between string and timestamp, only used by the writer thread.
+     */
+    private final SimpleDateFormat dtf = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+
+    private final BlockingQueue<Request> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    private Thread writer;
+
+    /**
+     * Submit an expense to be written. Blocks while the queue is full. An expense that is missing or not a
+     * finite number is not queued, its future fails right away.
+     *
+     * @param timeOfExpense time of the expense, or null to use the time it is written at
+     * @param expense       actual expense value
+     * @param category      category of the expense, may be null
+     * @param tags          free-form tags of the expense, may be null
+     * @param key           idempotency key of the expense, or null to write it as a new expense
+     * @return future of the written row, or of the stored row if the key was already written
+     */
+    CompletableFuture<Object[]> submit(String timeOfExpense, Double expense, String category,
+                                       Collection<String> tags, String key) {
+        Request request = new Request(timeOfExpense, expense, category, tags, key);
+
+        if (expense == null || expense.isNaN() || expense.isInfinite()) {
+            request.future.completeExceptionally(new IllegalArgumentException("Not a valid expense: " + expense));
+            return request.future;
+        }
+        startWriter();
+
+        try {
+            queue.put(request);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            request.future.completeExceptionally(e);
+        }
+        return request.future;
+    }
+
+    /**
+     * Start the writer thread if it is not running yet.
+     */
+    private synchronized void startWriter() {
+        if (writer == null) {
+            writer = new Thread(this::run, "ledger-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    /**
+     * Loop of the writer thread.
+     */
+    private void run() {
+        List<Request> batch = new ArrayList<>(MAX_BATCH_SIZE);
+
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                LOGGER.log(Level.WARNING, "Ledger writer interrupted.");
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Commit a group of requests and complete their futures. If the group fails, its requests are written again
+     * one at a time, so only the failing ones fail with the error.
+     * Requests skipped as duplicates get the row stored under their key.
+     *
+     * @param batch the requests to write
+     */
+    private void write(List<Request> batch) {
+        String now = dtf.format(new Date());
+        List<Expense> expenses = new ArrayList<>(batch.size());
+
+        for (Request request : batch) {
+            Expense expense = new Expense(request.timeOfExpense != null ? request.timeOfExpense : now,
+                    request.expense, null, request.category);
+            expense.setTags(request.tags);
+            expense.setKey(request.key);
+            expenses.add(expense);
+        }
+
+        Set<Expense> written;
+        try {
+            written = new HashSet<>(DatabaseConnection.writeBatch(expenses));
+        } catch (SQLException | RuntimeException e) {
+            if (batch.size() > 1) {
+                LOGGER.log(Level.WARNING, "Could not write a group of {0} to DB, writing them one by one. {1}",
+                        new Object[]{String.valueOf(batch.size()), e.toString()});
+
+                for (Request request : batch) {
+                    write(Collections.singletonList(request));
+                }
+                return;
+            }
+
+            LOGGER.log(Level.SEVERE, "Could not write to DB. {0}", e.toString());
+            batch.get(0).future.completeExceptionally(e);
+            return;
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            Expense expense = expenses.get(i);
+            try {
+                batch.get(i).future.complete(written.contains(expense)
+                        ? expense.getObject() : DatabaseConnection.readByKey(expense.getKey()));
+            } catch (SQLException e) {
+                LOGGER.log(Level.SEVERE, "Could not read a stored row from DB. {0}", e.toString());
+                batch.get(i).future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * An expense waiting to be written.
+     */
+    private static class Request {
+        private final String timeOfExpense;
+        private final Double expense;
+        private final String category;
+        private final Collection<String> tags;
+        private final String key;
+        private final CompletableFuture<Object[]> future = new CompletableFuture<>();
+
+        Request(String timeOfExpense, Double expense, String category, Collection<String> tags, String key) {
+            this.timeOfExpense = timeOfExpense;
+            this.expense = expense;
+            this.category = category;
+            this.tags = tags;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package hu.benjaminteke.expensecalculator.datamodel;
+
+/**
+ * The rows not archived yet and the last row, read together with the sequence of the last change of the
+ * {@link ChangeFeed} they include. A subscriber reloading after a reset applies only the later changes.
+ */
+public class RecentRows {
+
+    private final Object[][] rows;
+    private final Object[] lastRow;
+    private final long sequence;
+
+    RecentRows(Object[][] rows, Object[] lastRow, long sequence) {
+        this.rows = rows;
+        this.lastRow = lastRow;
+        this.sequence = sequence;
+    }
+
+    /**
+     * Get the recent rows.
+     *
+     * @return the rows of the time, the expense and the balance
+     */
+    public Object[][] getRows() {
+        return rows;
+    }
+
+    /**
+     * Get the last row, archived or not.
+     *
+     * @return the row of the time, the expense and the balance, empty if there is none
+     */
+    public Object[] getLastRow() {
+        return lastRow;
+    }
+
+    /**
+     * Get the sequence of the last change included in the rows.
+     *
+     * @return the sequence, the changes after it are not included
+     */
+    public long getSequence() {
+        return sequence;
+    }
+}
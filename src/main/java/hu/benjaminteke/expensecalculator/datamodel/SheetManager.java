@@ -40,33 +40,44 @@ class SheetManager {
      */
     private static final java.io.File DATA_STORE_DIR = new java.io.File(
             System.getProperty("user.home"), ".credentials/sheets.googleapis.com-expense-calculator");
-    /**
-     * Global instance of the JSON factory.
-     */
-    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
-    /**
-     * Global instance of the scopes required by this application.
-     */
-    private static final List<String> SCOPES = Collections.singletonList(SheetsScopes.SPREADSHEETS);
     /**
      * Id of the used spreadsheet.
      */
     private static final String spreadsheetId = "1W55QAkr94ATvXEohgabHl_Dc6UZ6IZanVAJi379Of6Q";
     /**
-     * Global instance of the {@link FileDataStoreFactory}.
+     * Authorized Sheets API client service, created on first use.
      */
-    private static FileDataStoreFactory DATA_STORE_FACTORY;
+    private static Sheets service;
+
     /**
-     * Global instance of the HTTP transport.
+     * Holder of the Google API client globals. They are created when the spreadsheet is first
+     * used instead of when the class is loaded, so that startup does not pay for them.
      */
-    private static HttpTransport HTTP_TRANSPORT;
-
-    static {
-        try {
-            HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
-            DATA_STORE_FACTORY = new FileDataStoreFactory(DATA_STORE_DIR);
-        } catch (Throwable t) {
-            LOGGER.log(Level.SEVERE, "Error creating GoogleNetHTTPTransport {0} ", t.toString());
+    private static class GoogleApi {
+        /**
+         * Global instance of the JSON factory.
+         */
+        private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+        /**
+         * Global instance of the scopes required by this application.
+         */
+        private static final List<String> SCOPES = Collections.singletonList(SheetsScopes.SPREADSHEETS);
+        /**
+         * Global instance of the {@link FileDataStoreFactory}.
+         */
+        private static FileDataStoreFactory DATA_STORE_FACTORY;
+        /**
+         * Global instance of the HTTP transport.
+         */
+        private static HttpTransport HTTP_TRANSPORT;
+
+        static {
+            try {
+                HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
+                DATA_STORE_FACTORY = new FileDataStoreFactory(DATA_STORE_DIR);
+            } catch (Throwable t) {
+                LOGGER.log(Level.SEVERE, "Error creating GoogleNetHTTPTransport {0} ", t.toString());
+            }
         }
     }
 
@@ -78,11 +89,11 @@ class SheetManager {
      */
     private static Credential authorize() throws IOException {
         InputStream in = SheetManager.class.getResourceAsStream("/client_secret.json");
-        GoogleClientSecrets clientSecrets = GoogleClientSecrets.load(JSON_FACTORY, new InputStreamReader(in));
+        GoogleClientSecrets clientSecrets = GoogleClientSecrets.load(GoogleApi.JSON_FACTORY, new InputStreamReader(in));
 
         GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow.Builder(
-                HTTP_TRANSPORT, JSON_FACTORY, clientSecrets, SCOPES)
-                .setDataStoreFactory(DATA_STORE_FACTORY)
+                GoogleApi.HTTP_TRANSPORT, GoogleApi.JSON_FACTORY, clientSecrets, GoogleApi.SCOPES)
+                .setDataStoreFactory(GoogleApi.DATA_STORE_FACTORY)
                 .setAccessType("offline")
                 .build();
 
@@ -94,16 +105,20 @@ class SheetManager {
     }
 
     /**
-     * Build and return with an authorized Sheets API client service.
+     * Build and return with an authorized Sheets API client service. It is built once and reused,
+     * the credential refreshes its token itself.
      *
      * @return an authorized Sheets API client service
      * @throws IOException
      */
-    private static Sheets getSheetsService() throws IOException {
-        Credential credential = authorize();
-        return new Sheets.Builder(HTTP_TRANSPORT, JSON_FACTORY, credential)
-                .setApplicationName(APPLICATION_NAME)
-                .build();
+    private static synchronized Sheets getSheetsService() throws IOException {
+        if (service == null) {
+            Credential credential = authorize();
+            service = new Sheets.Builder(GoogleApi.HTTP_TRANSPORT, GoogleApi.JSON_FACTORY, credential)
+                    .setApplicationName(APPLICATION_NAME)
+                    .build();
+        }
+        return service;
     }
 
     /**
@@ -152,23 +167,39 @@ class SheetManager {
      * @throws IOException
      */
     static void writeOne(String time, Double value) throws IOException {
-        ValueRange range = getResponse();
-        List<List<Object>> values = range.getValues();
+        writeRows(Collections.singletonList(new Object[]{time, value}));
+    }
+
+    /**
+     * Helper function that appends many expenses with one request, the balances continue from the last
+     * row of the spreadsheet.
+     *
+     * @param rows rows of the time and the value of the expenses
+     * @throws IOException
+     */
+    static void writeRows(List<Object[]> rows) throws IOException {
+        if (rows.isEmpty()) {
+            return;
+        }
+
+        List<List<Object>> values = getResponse().getValues();
+        double balance = values == null || values.isEmpty()
+                ? 0.0 : Double.parseDouble(Iterables.getLast(values).get(2).toString());
 
-        List<Object> data1 = new ArrayList<>();
-        data1.add(time);
-        data1.add(value);
+        List<List<Object>> data = new ArrayList<>(rows.size());
+        for (Object[] row : rows) {
+            double value = Double.parseDouble(row[1].toString());
+            balance += value;
 
-        if (values == null) {
+            List<Object> data1 = new ArrayList<>();
+            data1.add(row[0]);
             data1.add(value);
-        } else {
-            data1.add(Double.parseDouble(getLastValue()[2].toString()) + value);
+            data1.add(balance);
+            data.add(data1);
         }
 
-        List<List<Object>> data = new ArrayList<>();
-        data.add(data1);
-
         appendValue(data);
+        DataCache.spreadsheetWritten();
     }
 
     /**
@@ -0,0 +1,76 @@
+package hu.benjaminteke.expensecalculator.datamodel;
+
+import java.util.Arrays;
+
+/**
+ * Sum of the values of a sliding time window, kept in a ring of fixed size buckets. Adding a value and
+ * reading the sum take constant time, independent of how many values were added before.
+ */
+class SlidingWindow {
+    private final long bucketMillis;
+    private final double[] buckets;
+
+    private long newestBucket = Long.MIN_VALUE;
+    private double total;
+
+    SlidingWindow(long bucketMillis, int bucketCount) {
+        this.bucketMillis = bucketMillis;
+        this.buckets = new double[bucketCount];
+    }
+
+    /**
+     * Add a value at a time. Values older than the window are ignored, a newer time slides the window.
+     *
+     * @param millis time of the value
+     * @param value  the value
+     */
+    void add(long millis, double value) {
+        long bucket = Math.floorDiv(millis, bucketMillis);
+        slideTo(bucket);
+
+        if (bucket <= newestBucket - buckets.length) {
+            return;
+        }
+
+        buckets[(int) Math.floorMod(bucket, (long) buckets.length)] += value;
+        total += value;
+    }
+
+    /**
+     * Get the sum of the window ending at a time.
+     *
+     * @param millis end of the window
+     * @return the sum of the values in the window
+     */
+    double total(long millis) {
+        slideTo(Math.floorDiv(millis, bucketMillis));
+        return total;
+    }
+
+    /**
+     * Helper function to move the window forward, clearing the buckets falling out of it.
+     *
+     * @param bucket the newest bucket of the window
+     */
+    private void slideTo(long bucket) {
+        if (newestBucket == Long.MIN_VALUE) {
+            newestBucket = bucket;
+            return;
+        }
+        if (bucket <= newestBucket) {
+            return;
+        }
+
+        if (bucket - newestBucket >= buckets.length) {
+            Arrays.fill(buckets, 0.0);
+            total = 0.0;
+        } else {
+            for (long b = newestBucket + 1; b <= bucket; b++) {
+                int index = (int) Math.floorMod(b, (long) buckets.length);
+                total -= buckets[index];
+                buckets[index] = 0.0;
+            }
+        }
+        newestBucket = bucket;
+    }
+}
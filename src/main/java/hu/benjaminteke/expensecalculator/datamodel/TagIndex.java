@@ -0,0 +1,157 @@
+package hu.benjaminteke.expensecalculator.datamodel;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory inverted index from categories and tags to the ids of the expenses carrying them.
+ * Every label maps to a {@link BitSet} of row ids, so intersections and unions are word-wise operations.
+ * The time and the value of every indexed row is kept in id-addressed arrays, which lets date range
+ * filtering and aggregation run without touching the database.
+ */
+class TagIndex {
+    private final static Logger LOGGER = Logger.getLogger(TagIndex.class.getName());
+
+    /**
+     * Date time format to convert between string and timestamp. SimpleDateFormat is not thread-safe, so every
+     * index has its own, only used under the lock of the index.
+     */
+    private final SimpleDateFormat dtf = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+
+    private final Map<String, BitSet> categories = new HashMap<>();
+    private final Map<String, BitSet> tags = new HashMap<>();
+    private final BitSet all = new BitSet();
+
+    private long[] times = new long[1024];
+    private double[] values = new double[1024];
+
+    /**
+     * Add a row to the index.
+     *
+     * @param id            id of the row in the database
+     * @param timeOfExpense formatted time of the expense
+     * @param expense       value of the expense
+     * @param category      category of the expense, may be null
+     */
+    synchronized void add(int id, String timeOfExpense, Double expense, String category) {
+        ensureCapacity(id);
+
+        times[id] = convertStringToMillis(timeOfExpense);
+        values[id] = expense != null ? expense : 0.0;
+        all.set(id);
+
+        String key = Expense.normalizeLabel(category);
+        if (key != null) {
+            categories.computeIfAbsent(key, k -> new BitSet()).set(id);
+        }
+    }
+
+    /**
+     * Attach a tag to an already indexed row.
+     *
+     * @param id  id of the row in the database
+     * @param tag free-form tag
+     */
+    synchronized void addTag(int id, String tag) {
+        String key = Expense.normalizeLabel(tag);
+        if (key != null) {
+            tags.computeIfAbsent(key, k -> new BitSet()).set(id);
+        }
+    }
+
+    /**
+     * Select the ids of the rows matching every given constraint. Null or empty parameters are not constraining.
+     *
+     * @param category  category the rows must belong to
+     * @param allOf     tags that all must be present on the row
+     * @param anyOf     tags from which at least one must be present on the row
+     * @param startTime start time for filtering, inclusive
+     * @param endTime   end time for filtering, exclusive
+     * @return a new BitSet with the ids of the matching rows
+     */
+    synchronized BitSet select(String category, Collection<String> allOf, Collection<String> anyOf,
+                               String startTime, String endTime) {
+        BitSet result = (BitSet) all.clone();
+
+        if (Expense.normalizeLabel(category) != null) {
+            result.and(categories.getOrDefault(Expense.normalizeLabel(category), new BitSet()));
+        }
+
+        if (allOf != null) {
+            for (String tag : allOf) {
+                result.and(tags.getOrDefault(Expense.normalizeLabel(tag), new BitSet()));
+            }
+        }
+
+        if (anyOf != null && !anyOf.isEmpty()) {
+            BitSet union = new BitSet();
+            for (String tag : anyOf) {
+                union.or(tags.getOrDefault(Expense.normalizeLabel(tag), new BitSet()));
+            }
+            result.and(union);
+        }
+
+        long start = convertStringToMillis(startTime);
+        long end = convertStringToMillis(endTime);
+
+        if (start != Long.MIN_VALUE || end != Long.MIN_VALUE) {
+            for (int id = result.nextSetBit(0); id >= 0; id = result.nextSetBit(id + 1)) {
+                if ((start != Long.MIN_VALUE && times[id] < start) || (end != Long.MIN_VALUE && times[id] >= end)) {
+                    result.clear(id);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Sum the expense values of the given rows.
+     *
+     * @param ids ids of the rows, as returned by {@link #select}
+     * @return sum of the values
+     */
+    synchronized double sum(BitSet ids) {
+        double sum = 0.0;
+        for (int id = ids.nextSetBit(0); id >= 0 && id < values.length; id = ids.nextSetBit(id + 1)) {
+            sum += values[id];
+        }
+        return sum;
+    }
+
+    /**
+     * Grow the id-addressed arrays so that the given id fits.
+     *
+     * @param id id to make room for
+     */
+    private void ensureCapacity(int id) {
+        if (id >= times.length) {
+            int newLength = Math.max(id + 1, times.length * 2);
+            times = Arrays.copyOf(times, newLength);
+            values = Arrays.copyOf(values, newLength);
+        }
+    }
+
+    /**
+     * Helper function to convert string dates to epoch milliseconds.
+     *
+     * @param time a formatted string representing a date.
+     * @return milliseconds of the parameter date, Long.MIN_VALUE if it is empty or invalid.
+     */
+    private long convertStringToMillis(String time) {
+        if (time == null || time.isEmpty()) {
+            return Long.MIN_VALUE;
+        }
+
+        try {
+            return dtf.parse(time).getTime();
+        } catch (ParseException e) {
+            LOGGER.log(Level.WARNING, "Error converting timestamp. {0}", e.toString());
+
+            return Long.MIN_VALUE;
+        }
+    }
+}
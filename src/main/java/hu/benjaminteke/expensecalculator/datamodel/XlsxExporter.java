@@ -1,16 +1,24 @@
 package hu.benjaminteke.expensecalculator.datamodel;
 
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Font;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.sql.Timestamp;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -19,6 +27,51 @@ import java.util.stream.Stream;
 public class XlsxExporter {
     private final static Logger LOGGER = Logger.getLogger(XlsxExporter.class.getName());
 
+    /**
+     * Number of rows a partitioned export keeps in memory per sheet, the rest is flushed to temporary files.
+     */
+    private final static int ROW_WINDOW = 100;
+
+    /**
+     * Number of rows written between two checks for cancellation.
+     */
+    private final static int CANCEL_CHECK_ROWS = 1000;
+
+    private final static String[] HEADER = {"Date", "Expense", "Account balance"};
+    private final static String[] SUMMARY_HEADER = {"Sheet", "Rows", "Income", "Spending", "Net", "Closing balance"};
+
+    /**
+     * Partitioning of the rows into sheets.
+     */
+    public enum Partition {
+        /**
+         * Every row in one "Expenses" sheet, as the simple export does.
+         */
+        NONE,
+        /**
+         * One sheet per month, named yyyy-MM.
+         */
+        MONTH,
+        /**
+         * One sheet per year, named yyyy.
+         */
+        YEAR
+    }
+
+    /**
+     * Receives the progress of an export.
+     */
+    public interface ProgressListener {
+        /**
+         * Called from the exporting thread every few written rows and when the file is written. Every row is a
+         * step, writing the file is the last one.
+         *
+         * @param done  number of finished steps
+         * @param total number of all steps
+         */
+        void progress(int done, int total);
+    }
+
     /**
      * Date time format to convert between string and timestamp.
      */
@@ -57,12 +110,259 @@ public class XlsxExporter {
 
     }
 
+    /**
+     * Creates a new xlsx document, with a single "Expenses" sheet or with a sheet per partition, and saves it to
+     * the folder of the jar file.
+     * <p>
+     * Each partition sheet ends with a total row, and a summary sheet listing every partition is added in front.
+     * Rows are streamed to temporary files, so only a small window of each sheet is kept in memory. The workbook
+     * is filled on the calling thread, as POI workbooks are not thread safe. Interrupting the calling thread
+     * cancels the export and no file is left behind.
+     *
+     * @param name      name of the file to create.
+     * @param data      data parameter.
+     * @param startTime start time for filtering.
+     * @param endTime   end time for filtering.
+     * @param partition partitioning of the rows into sheets.
+     * @param listener  receives the progress, may be null.
+     * @throws InterruptedIOException throws an error if the export was cancelled.
+     * @throws IOException            throws an error if the file creation has failed.
+     */
+    public static void exportToXlsx(String name, List<Object[]> data, String startTime, String endTime,
+                                    Partition partition, ProgressListener listener) throws IOException {
+        LOGGER.log(Level.FINE, "Creating xlsx with {0} sheets.", partition);
+
+        List<Object[]> filteredData = filterData(data, startTime, endTime);
+        Progress progress = new Progress(listener, filteredData.size() + 1);
+        SXSSFWorkbook wb = new SXSSFWorkbook(ROW_WINDOW);
+
+        try {
+            if (partition == Partition.NONE) {
+                fillRows(wb.createSheet("Expenses"), filteredData, progress);
+            } else {
+                CellStyle bold = boldStyle(wb);
+                Sheet summarySheet = wb.createSheet("Summary");
+                Map<String, double[]> summaries = new TreeMap<>();
+
+                for (Map.Entry<String, List<Object[]>> entry : partition(filteredData, partition).entrySet()) {
+                    summaries.put(entry.getKey(),
+                            fillSheet(wb.createSheet(entry.getKey()), entry.getValue(), bold, progress));
+                }
+                fillSummarySheet(summarySheet, summaries, bold);
+            }
+
+            write(wb, name);
+            progress.finish();
+            LOGGER.log(Level.FINE, "Xlsx export done.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Xlsx export cancelled.");
+        } finally {
+            wb.dispose();
+        }
+    }
+
+    /**
+     * Group the rows by month or year, keeping their order within each group.
+     *
+     * @param data      filtered rows
+     * @param partition partitioning of the rows
+     * @return the rows by sheet name, in time order
+     */
+    private static Map<String, List<Object[]>> partition(List<Object[]> data, Partition partition) {
+        int keyLength = partition == Partition.MONTH ? "yyyy/MM".length() : "yyyy".length();
+        Map<String, List<Object[]>> partitions = new TreeMap<>();
+
+        for (Object[] row : data) {
+            String time = row[0].toString();
+            String key = time.length() >= keyLength ? time.substring(0, keyLength).replace('/', '-') : time;
+            partitions.computeIfAbsent(key, k -> new ArrayList<>()).add(row);
+        }
+        return partitions;
+    }
+
+    /**
+     * Counts the written rows, reports them to the listener and checks for cancellation every few rows.
+     */
+    private static class Progress {
+        private final ProgressListener listener;
+        private final int total;
+        private int done;
+
+        Progress(ProgressListener listener, int total) {
+            this.listener = listener;
+            this.total = total;
+        }
+
+        /**
+         * Count a written row.
+         *
+         * @throws InterruptedException throws an exception if the export was cancelled
+         */
+        void row() throws InterruptedException {
+            if (++done % CANCEL_CHECK_ROWS == 0) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException();
+                }
+                if (listener != null) {
+                    listener.progress(done, total);
+                }
+            }
+        }
+
+        void finish() {
+            if (listener != null) {
+                listener.progress(total, total);
+            }
+        }
+    }
+
+    /**
+     * Fill the single sheet of an unpartitioned export, in the format of the simple export.
+     *
+     * @param sheet    the sheet
+     * @param rows     the filtered rows
+     * @param progress progress of the export
+     * @throws InterruptedException throws an exception if the export was cancelled
+     */
+    private static void fillRows(Sheet sheet, List<Object[]> rows, Progress progress) throws InterruptedException {
+        int i = 0;
+
+        for (Object[] aData : rows) {
+            Row row = sheet.createRow(i++);
+            row.createCell(0).setCellValue(aData[0].toString());
+            row.createCell(1).setCellValue(Double.parseDouble(aData[1].toString()));
+            row.createCell(2).setCellValue(Double.parseDouble(aData[2].toString()));
+            progress.row();
+        }
+    }
+
+    /**
+     * Fill the sheet of a partition with its rows and a total row.
+     *
+     * @param sheet    the sheet of the partition
+     * @param rows     rows of the partition
+     * @param bold     style of the header and the total row
+     * @param progress progress of the export
+     * @return the number of rows, the income, the spending and the closing balance
+     * @throws InterruptedException throws an exception if the export was cancelled
+     */
+    private static double[] fillSheet(Sheet sheet, List<Object[]> rows, CellStyle bold, Progress progress)
+            throws InterruptedException {
+        double income = 0;
+        double spending = 0;
+        double balance = 0;
+        int i = 0;
+
+        writeHeader(sheet.createRow(i++), HEADER, bold);
+
+        for (Object[] aData : rows) {
+            double expense = Double.parseDouble(aData[1].toString());
+            balance = Double.parseDouble(aData[2].toString());
+
+            if (expense >= 0) {
+                income += expense;
+            } else {
+                spending += expense;
+            }
+
+            Row row = sheet.createRow(i++);
+            row.createCell(0).setCellValue(aData[0].toString());
+            row.createCell(1).setCellValue(expense);
+            row.createCell(2).setCellValue(balance);
+            progress.row();
+        }
+
+        Row total = sheet.createRow(i);
+        total.createCell(0).setCellValue("Total");
+        total.createCell(1).setCellValue(income + spending);
+        total.createCell(2).setCellValue(balance);
+        total.getCell(0).setCellStyle(bold);
+
+        return new double[]{rows.size(), income, spending, balance};
+    }
+
+    /**
+     * Fill the summary sheet with a row per partition and a total row.
+     *
+     * @param sheet     the summary sheet
+     * @param summaries the summaries of the partitions by sheet name
+     * @param bold      style of the header and the total row
+     */
+    private static void fillSummarySheet(Sheet sheet, Map<String, double[]> summaries, CellStyle bold) {
+        double[] totals = new double[4];
+        int i = 0;
+
+        writeHeader(sheet.createRow(i++), SUMMARY_HEADER, bold);
+
+        for (Map.Entry<String, double[]> entry : summaries.entrySet()) {
+            double[] summary = entry.getValue();
+            writeSummaryRow(sheet.createRow(i++), entry.getKey(), summary);
+
+            totals[0] += summary[0];
+            totals[1] += summary[1];
+            totals[2] += summary[2];
+            totals[3] = summary[3];
+        }
+
+        Row total = sheet.createRow(i);
+        writeSummaryRow(total, "Total", totals);
+        total.getCell(0).setCellStyle(bold);
+    }
+
+    private static void writeSummaryRow(Row row, String name, double[] summary) {
+        row.createCell(0).setCellValue(name);
+        row.createCell(1).setCellValue(summary[0]);
+        row.createCell(2).setCellValue(summary[1]);
+        row.createCell(3).setCellValue(summary[2]);
+        row.createCell(4).setCellValue(summary[1] + summary[2]);
+        row.createCell(5).setCellValue(summary[3]);
+    }
+
+    private static void writeHeader(Row row, String[] names, CellStyle style) {
+        for (int c = 0; c < names.length; c++) {
+            row.createCell(c).setCellValue(names[c]);
+            row.getCell(c).setCellStyle(style);
+        }
+    }
+
+    private static CellStyle boldStyle(Workbook wb) {
+        Font font = wb.createFont();
+        font.setBold(true);
+
+        CellStyle style = wb.createCellStyle();
+        style.setFont(font);
+        return style;
+    }
+
+    /**
+     * Write the workbook to the file, deleting the file if the export is cancelled meanwhile.
+     *
+     * @param wb   the workbook
+     * @param name name of the file to create
+     * @throws IOException throws an error if the file creation has failed
+     */
+    private static void write(Workbook wb, String name) throws IOException {
+        File file = new File(name + ".xlsx");
+
+        try (FileOutputStream fileOut = new FileOutputStream(file)) {
+            wb.write(fileOut);
+        }
+
+        if (Thread.currentThread().isInterrupted()) {
+            if (!file.delete()) {
+                LOGGER.log(Level.WARNING, "Could not delete cancelled export {0}.", file.getName());
+            }
+            throw new InterruptedIOException("Xlsx export cancelled.");
+        }
+    }
+
     /**
      * Filter the data for start and end time. The time parameters need to correspond to the format defined by the format string.
      *
      * @param data      input data
-     * @param startTime start time parameter string.
-     * @param endTime   end time parameter string.
+     * @param startTime start time parameter string, inclusive.
+     * @param endTime   end time parameter string, exclusive.
      * @return filtered List of the data.
      */
     private static List<Object[]> filterData(List<Object[]> data, String startTime, String endTime) {
@@ -71,7 +371,7 @@ public class XlsxExporter {
         Stream<Object[]> stream = data.stream();
 
         if (start != null) {
-            stream = stream.filter(d -> convertStringToTimestamp(d[0].toString()).after(start));
+            stream = stream.filter(d -> !convertStringToTimestamp(d[0].toString()).before(start));
         }
 
         if (end != null) {
@@ -4,13 +4,21 @@ import com.google.common.collect.Lists;
 import com.intellij.uiDesigner.core.GridConstraints;
 import com.intellij.uiDesigner.core.GridLayoutManager;
 import com.intellij.uiDesigner.core.Spacer;
+import hu.benjaminteke.expensecalculator.datamodel.BudgetAlert;
+import hu.benjaminteke.expensecalculator.datamodel.ChangeEvent;
 import hu.benjaminteke.expensecalculator.datamodel.DataManager;
+import hu.benjaminteke.expensecalculator.datamodel.RecentRows;
 import hu.benjaminteke.expensecalculator.datamodel.XlsxExporter;
 
 import javax.swing.*;
 import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -23,8 +31,13 @@ public class ExpenseCalculatorGui extends JFrame {
 
     private static final int WIDTH = 300;
     private static final int HEIGHT = 300;
+    private static final String[] COLUMN_NAMES = {"Date", "Expense", "Account balance"};
+
+    /**
+     * Number of changes waiting for the event dispatch thread before the table is reloaded instead.
+     */
+    private static final int CHANGE_FEED_CAPACITY = 1024;
     private static DefaultTableModel dataTableModel;
-    private static Object[][] data;
     private JPanel mainPanel;
     private JFormattedTextField expenseInput;
     private JButton sendButton;
@@ -38,6 +51,16 @@ public class ExpenseCalculatorGui extends JFrame {
     private JFormattedTextField exportName;
     private JTextField startTimeField;
     private JTextField endTimeField;
+    private JComboBox<XlsxExporter.Partition> partitionBox;
+    private JProgressBar exportProgress;
+    private SwingWorker<Void, Void> exportWorker;
+
+    /**
+     * Changes received while the table is reloaded, applied after the reload unless it already includes them.
+     */
+    private final List<ChangeEvent> pendingChanges = new ArrayList<>();
+    private boolean reloading;
+    private boolean reloadAgain;
 
     /**
      * GUI constructor.
@@ -47,8 +70,6 @@ public class ExpenseCalculatorGui extends JFrame {
 
         LOGGER.log(Level.FINE, "Creating the GUI.");
 
-        DataManager.sync();
-
         $$$setupUI$$$();
         setContentPane(mainPanel);
         setMinimumSize(new Dimension(WIDTH, HEIGHT));
@@ -59,16 +80,125 @@ public class ExpenseCalculatorGui extends JFrame {
         initComponents();
     }
 
+    /**
+     * Sync with the spreadsheet in the background, so that the window does not wait for the Google API
+     * and the network. The table follows the synced rows through the change feed. Old rows are only archived
+     * by the archive command of the command line.
+     * <p>
+     * Saving is disabled until the sync is finished, otherwise a row saved while the spreadsheet is read would
+     * only be found in the database and appended to the spreadsheet a second time.
+     */
+    public void syncInBackground() {
+        sendButton.setEnabled(false);
+        expenseInput.setEnabled(false);
+
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() {
+                long start = System.nanoTime();
+                DataManager.sync();
+
+                LOGGER.log(Level.INFO, "Background sync finished in {0} ms.",
+                        String.valueOf(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    get();
+                } catch (InterruptedException | ExecutionException e) {
+                    LOGGER.log(Level.SEVERE, "Background sync failed. {0}", e.toString());
+                } finally {
+                    sendButton.setEnabled(true);
+                    expenseInput.setEnabled(true);
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Apply the changes of the database to the table and the balance. Written and synced rows are appended,
+     * archiving or a reset of the subscription reloads the recent rows in the background. Runs on the event
+     * dispatch thread.
+     *
+     * @param events the published changes
+     */
+    private void applyChanges(List<ChangeEvent> events) {
+        for (ChangeEvent event : events) {
+            switch (event.getType()) {
+                case APPENDED:
+                case SYNCED:
+                    if (reloading) {
+                        pendingChanges.add(event);
+                    } else {
+                        appendRow(event.getRow());
+                    }
+                    break;
+                default:
+                    reloadInBackground();
+                    break;
+            }
+        }
+    }
+
+    private void appendRow(Object[] row) {
+        dataTableModel.addRow(row);
+        actualValue.setText(row[2].toString());
+    }
+
+    /**
+     * Reload the recent rows and the balance off the event dispatch thread. The changes arriving meanwhile are
+     * kept and applied afterwards if the reloaded rows do not include them yet.
+     */
+    private void reloadInBackground() {
+        if (reloading) {
+            reloadAgain = true;
+            return;
+        }
+        reloading = true;
+
+        new SwingWorker<RecentRows, Void>() {
+            @Override
+            protected RecentRows doInBackground() {
+                return DataManager.readRecentRows();
+            }
+
+            @Override
+            protected void done() {
+                reloading = false;
+                try {
+                    RecentRows recent = get();
+                    dataTableModel.setDataVector(recent.getRows(), COLUMN_NAMES);
+                    if (recent.getLastRow().length > 2) {
+                        actualValue.setText(recent.getLastRow()[2].toString());
+                    }
+
+                    for (ChangeEvent event : pendingChanges) {
+                        if (event.getSequence() > recent.getSequence()) {
+                            appendRow(event.getRow());
+                        }
+                    }
+                } catch (InterruptedException | ExecutionException e) {
+                    LOGGER.log(Level.SEVERE, "Could not reload the table. {0}", e.toString());
+                } finally {
+                    pendingChanges.clear();
+                    if (reloadAgain) {
+                        reloadAgain = false;
+                        reloadInBackground();
+                    }
+                }
+            }
+        }.execute();
+    }
+
     /**
      * Creates the table for the expense values.
      *
      * @return the created table
      */
     private static JTable createTable() {
-        String[] columnNames = {"Date", "Expense", "Account balance"};
-        data = DataManager.readAllData();
-
-        dataTableModel = new DefaultTableModel(data, columnNames);
+        dataTableModel = new DefaultTableModel(DataManager.readRecentData(), COLUMN_NAMES);
         JTable table = new JTable(dataTableModel);
 
         table.setFillsViewportHeight(true);
@@ -78,18 +208,21 @@ public class ExpenseCalculatorGui extends JFrame {
     }
 
     /**
-     * Initializes the button listener, reads the actual account balance.
+     * Initializes the button listener, the change feed subscription and the budget alerts, reads the actual
+     * account balance.
      */
     private void initComponents() {
+        DataManager.subscribe(CHANGE_FEED_CAPACITY, SwingUtilities::invokeLater, this::applyChanges);
+        DataManager.addBudgetListener(SwingUtilities::invokeLater, alert ->
+                JOptionPane.showMessageDialog(this, alert.toString(), "Budget",
+                        alert.getLevel() == BudgetAlert.Level.EXCEEDED
+                                ? JOptionPane.ERROR_MESSAGE : JOptionPane.WARNING_MESSAGE));
+
         sendButton.addActionListener(e ->
         {
             if (!expenseInput.getText().equals("")) {
                 try {
                     DataManager.writeData(Double.parseDouble(expenseInput.getText()));
-                    Object[] lastValue = DataManager.readLastData();
-                    actualValue.setText(lastValue[2].toString());
-                    data = DataManager.appendToArray(data, lastValue);
-                    dataTableModel.addRow(lastValue);
                     LOGGER.log(Level.FINE, "SaveButton listener finished.");
                 } catch (NumberFormatException n) {
                     LOGGER.log(Level.FINE, "Wrong input. {0}", n.toString());
@@ -103,31 +236,72 @@ public class ExpenseCalculatorGui extends JFrame {
             expenseInput.setText("");
         });
 
+        partitionBox.setModel(new DefaultComboBoxModel<>(XlsxExporter.Partition.values()));
+        partitionBox.setSelectedItem(XlsxExporter.Partition.MONTH);
+
         exportButton.addActionListener(e -> {
-            if (!exportName.getText().equals("")) {
+            if (exportWorker != null) {
+                exportWorker.cancel(true);
+            } else if (!exportName.getText().equals("")) {
+                startExport();
+            } else {
+                JOptionPane.showMessageDialog(null, "Empty input. Please input a valid name for the exported file.");
+            }
+        });
+
+        actualValue.setText(DataManager.readLastData()[2].toString());
+    }
+
+    /**
+     * Export the data in the background, showing the progress on the export tab. While the export runs, the
+     * export button cancels it.
+     */
+    private void startExport() {
+        String name = exportName.getText();
+        String startTime = startTimeField.getText();
+        String endTime = endTimeField.getText();
+        XlsxExporter.Partition partition = (XlsxExporter.Partition) partitionBox.getSelectedItem();
+
+        exportWorker = new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws IOException {
+                List<Object[]> exportData = Lists.newArrayList(DataManager.readAllData());
+                XlsxExporter.exportToXlsx(name, exportData, startTime, endTime, partition,
+                        (done, total) -> setProgress(done * 100 / total));
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                exportWorker = null;
+                exportButton.setText("Export");
+
                 try {
-                    XlsxExporter.exportToXlsx(
-                            exportName.getText(),
-                            Lists.newArrayList(data),
-                            startTimeField.getText(),
-                            endTimeField.getText());
-
-                    LOGGER.log(Level.FINE, "ExportButton listener finished.");
-                } catch (IOException i) {
+                    get();
+                    exportName.setText("");
+                    startTimeField.setText("");
+                    endTimeField.setText("");
+                    LOGGER.log(Level.FINE, "Export finished.");
+                } catch (CancellationException c) {
+                    exportProgress.setValue(0);
+                    LOGGER.log(Level.FINE, "Export cancelled.");
+                } catch (InterruptedException | ExecutionException i) {
                     LOGGER.log(Level.SEVERE, "Error creating xlsx file. {0}", i.toString());
 
                     JOptionPane.showMessageDialog(null, "Error creating xlsx file.");
                 }
-            } else {
-                JOptionPane.showMessageDialog(null, "Empty input. Please input a valid name for the exported file.");
             }
+        };
 
-            exportName.setText("");
-            startTimeField.setText("");
-            endTimeField.setText("");
+        exportWorker.addPropertyChangeListener(p -> {
+            if ("progress".equals(p.getPropertyName())) {
+                exportProgress.setValue((Integer) p.getNewValue());
+            }
         });
 
-        actualValue.setText(DataManager.readLastData()[2].toString());
+        exportProgress.setValue(0);
+        exportButton.setText("Cancel");
+        exportWorker.execute();
     }
 
     /**
@@ -203,17 +377,17 @@ public class ExpenseCalculatorGui extends JFrame {
         dataTable.setFillsViewportHeight(true);
         scrollPane1.setViewportView(dataTable);
         exportTab = new JPanel();
-        exportTab.setLayout(new GridLayoutManager(15, 4, new Insets(0, 0, 0, 0), -1, -1));
+        exportTab.setLayout(new GridLayoutManager(18, 4, new Insets(0, 0, 0, 0), -1, -1));
         tabRoot.addTab("Export", exportTab);
         exportButton = new JButton();
         exportButton.setText("Export");
-        exportTab.add(exportButton, new GridConstraints(13, 1, 1, 2, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_HORIZONTAL, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
+        exportTab.add(exportButton, new GridConstraints(15, 1, 1, 2, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_HORIZONTAL, GridConstraints.SIZEPOLICY_CAN_SHRINK | GridConstraints.SIZEPOLICY_CAN_GROW, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
         final Spacer spacer9 = new Spacer();
         exportTab.add(spacer9, new GridConstraints(3, 3, 7, 1, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_HORIZONTAL, GridConstraints.SIZEPOLICY_WANT_GROW, 1, null, null, null, 0, false));
         final Spacer spacer10 = new Spacer();
         exportTab.add(spacer10, new GridConstraints(3, 0, 3, 1, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_HORIZONTAL, GridConstraints.SIZEPOLICY_WANT_GROW, 1, null, null, null, 0, false));
         final Spacer spacer11 = new Spacer();
-        exportTab.add(spacer11, new GridConstraints(14, 1, 1, 2, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_VERTICAL, 1, GridConstraints.SIZEPOLICY_WANT_GROW, null, null, null, 0, false));
+        exportTab.add(spacer11, new GridConstraints(17, 1, 1, 2, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_VERTICAL, 1, GridConstraints.SIZEPOLICY_WANT_GROW, null, null, null, 0, false));
         exportName = new JFormattedTextField();
         exportName.setText("");
         exportTab.add(exportName, new GridConstraints(5, 1, 3, 2, GridConstraints.ANCHOR_WEST, GridConstraints.FILL_HORIZONTAL, GridConstraints.SIZEPOLICY_WANT_GROW, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
@@ -255,6 +429,16 @@ public class ExpenseCalculatorGui extends JFrame {
         final JLabel label7 = new JLabel();
         label7.setText("End Time");
         exportTab.add(label7, new GridConstraints(11, 0, 1, 1, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_NONE, GridConstraints.SIZEPOLICY_FIXED, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
+        final JLabel label8 = new JLabel();
+        label8.setText("Sheets");
+        exportTab.add(label8, new GridConstraints(13, 0, 1, 1, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_NONE, GridConstraints.SIZEPOLICY_FIXED, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
+        partitionBox = new JComboBox();
+        exportTab.add(partitionBox, new GridConstraints(13, 1, 1, 2, GridConstraints.ANCHOR_WEST, GridConstraints.FILL_HORIZONTAL, GridConstraints.SIZEPOLICY_CAN_GROW, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
+        final Spacer spacer18 = new Spacer();
+        exportTab.add(spacer18, new GridConstraints(14, 1, 1, 2, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_VERTICAL, 1, GridConstraints.SIZEPOLICY_WANT_GROW, null, null, null, 0, false));
+        exportProgress = new JProgressBar();
+        exportProgress.setStringPainted(true);
+        exportTab.add(exportProgress, new GridConstraints(16, 1, 1, 2, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_HORIZONTAL, GridConstraints.SIZEPOLICY_WANT_GROW, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false));
     }
 
     /**
@@ -0,0 +1,212 @@
+package hu.benjaminteke.expensecalculator.api;
+
+import hu.benjaminteke.expensecalculator.datamodel.DatabaseConnection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test harness of the {@link ApiServer}. Starts an embedded server on a local SQLite file, runs concurrent
+ * clients doing a mix of appends and balance reads, then reports the throughput and the latency percentiles
+ * and checks that the final balance equals the sum of the appended expenses.
+ * <p>
+ * Usage: {@code ApiBenchmark [--clients 64] [--seconds 10] [--write-ratio 0.2] [--threads 16]}
+ * <p>
+ * It lives in the test sources so that it is not packaged, run it on the test classpath after
+ * {@code mvn test-compile}.
+ * <p>
+ * Unless the expensecalculator.database system property is set, a temporary database file is used,
+ * so the real ledger is never touched.
+ */
+public class ApiBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int clients = 64;
+        int seconds = 10;
+        double writeRatio = 0.2;
+        int threads = 16;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--clients":
+                    clients = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--write-ratio":
+                    writeRatio = Double.parseDouble(args[i + 1]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        if (System.getProperty("expensecalculator.database") == null) {
+            File database = File.createTempFile("expense-benchmark", ".db");
+            database.deleteOnExit();
+            System.setProperty("expensecalculator.database", database.getAbsolutePath());
+        }
+
+        DatabaseConnection.initDatabase();
+        ApiServer server = new ApiServer(0, threads);
+        server.start();
+
+        String base = "http://localhost:" + server.getPort();
+        double startBalance = Double.parseDouble(balanceOf(request(base + "/balance", null)));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+        AtomicLong writes = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        List<Future<long[]>> results = new ArrayList<>();
+
+        for (int c = 0; c < clients; c++) {
+            final double ratio = writeRatio;
+            results.add(pool.submit(() -> {
+                long[] latencies = new long[1024];
+                int count = 0;
+
+                while (System.nanoTime() < deadline) {
+                    boolean write = ThreadLocalRandom.current().nextDouble() < ratio;
+                    long start = System.nanoTime();
+
+                    try {
+                        if (write) {
+                            request(base + "/expenses", "{\"expense\": 1, \"tags\": [\"benchmark\"]}");
+                            writes.incrementAndGet();
+                        } else {
+                            request(base + "/balance", null);
+                        }
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                    }
+
+                    if (count == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    }
+                    latencies[count++] = System.nanoTime() - start;
+                }
+                return Arrays.copyOf(latencies, count);
+            }));
+        }
+
+        List<long[]> perClient = new ArrayList<>();
+        int total = 0;
+        for (Future<long[]> result : results) {
+            perClient.add(result.get());
+            total += perClient.get(perClient.size() - 1).length;
+        }
+        pool.shutdown();
+
+        long[] all = new long[total];
+        int offset = 0;
+        for (long[] latencies : perClient) {
+            System.arraycopy(latencies, 0, all, offset, latencies.length);
+            offset += latencies.length;
+        }
+        Arrays.sort(all);
+
+        double endBalance = Double.parseDouble(balanceOf(request(base + "/balance", null)));
+        server.stop(0);
+
+        System.out.printf("Requests: %d (%d writes, %d errors) in %d s%n", total, writes.get(), errors.get(), seconds);
+        System.out.printf("Throughput: %.1f requests/s%n", total / (double) seconds);
+        System.out.printf("Latency p50: %.2f ms, p99: %.2f ms, max: %.2f ms%n",
+                percentile(all, 0.50), percentile(all, 0.99), percentile(all, 1.0));
+        System.out.printf("Balance %s: expected %.1f, got %.1f%n",
+                endBalance - startBalance == writes.get() ? "consistent" : "INCONSISTENT",
+                startBalance + writes.get(), endBalance);
+    }
+
+    /**
+     * Send a request and read the response.
+     *
+     * @param url  the URL to call
+     * @param body JSON body to POST, or null to GET
+     * @return the response body
+     * @throws IOException throws an error if the request failed or got an error status
+     */
+    private static String request(String url, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+
+        if (body != null) {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        if (connection.getResponseCode() != 200) {
+            try (InputStream in = connection.getErrorStream()) {
+                if (in != null) {
+                    readAll(in);
+                }
+            }
+            throw new IOException("Status " + connection.getResponseCode() + " from " + url);
+        }
+
+        try (InputStream in = connection.getInputStream()) {
+            return readAll(in);
+        }
+    }
+
+    /**
+     * Read a stream fully, so that the connection can be reused.
+     *
+     * @param in the stream
+     * @return the content as a string
+     * @throws IOException throws an error if the stream can not be read
+     */
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Helper function to extract the balance from a JSON row, without a JSON parser on the client side.
+     *
+     * @param row the JSON row
+     * @return the balance, "0" if the ledger is empty
+     */
+    private static String balanceOf(String row) {
+        String value = row.replaceAll(".*\"balance\":([^,}]*).*", "$1").trim();
+        return value.isEmpty() || "null".equals(value) || value.startsWith("\"") ? "0" : value;
+    }
+
+    /**
+     * Helper function to get a percentile of sorted latencies in milliseconds.
+     *
+     * @param sorted sorted latencies in nanoseconds
+     * @param p      the percentile between 0 and 1
+     * @return the latency in milliseconds
+     */
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0.0;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1_000_000.0;
+    }
+}
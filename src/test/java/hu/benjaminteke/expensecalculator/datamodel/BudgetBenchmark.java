@@ -0,0 +1,134 @@
+package hu.benjaminteke.expensecalculator.datamodel;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmark of the budget evaluation on write. For growing history sizes, the {@link BudgetMonitor} is loaded
+ * with a history ending now, then fed writes from the change feed one by one. The same writes are evaluated by
+ * rescanning the history of every budget period, which is what a query per write would cost without the
+ * sliding windows. The database is not touched, so only the evaluation itself is measured.
+ * <p>
+ * Usage: {@code BudgetBenchmark [--budgets 4] [--writes 10000] [--history 10000,100000,1000000]}
+ * <p>
+ * It lives in the test sources so that it is not packaged, run it on the test classpath after
+ * {@code mvn test-compile}.
+ */
+public class BudgetBenchmark {
+
+    private final static String[] CATEGORIES = {"food", "rent", "travel", "fun"};
+
+    public static void main(String[] args) {
+        int budgets = 4;
+        int writes = 10_000;
+        String history = "10000,100000,1000000";
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--budgets":
+                    budgets = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--writes":
+                    writes = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--history":
+                    history = args[i + 1];
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        SimpleDateFormat dtf = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+        List<Budget> budgetList = new ArrayList<>();
+        for (int b = 0; b < budgets; b++) {
+            Budget.Period period = Budget.Period.values()[b % Budget.Period.values().length];
+            budgetList.add(new Budget(b == 0 ? null : CATEGORIES[b % CATEGORIES.length], period, 1e12));
+        }
+
+        // The first pass only warms up the JIT compiler.
+        List<String> sizes = new ArrayList<>(Arrays.asList(history.split(",")));
+        sizes.add(0, sizes.get(0));
+
+        for (int s = 0; s < sizes.size(); s++) {
+            int rows = Integer.parseInt(sizes.get(s).trim());
+            long now = System.currentTimeMillis();
+
+            // The history spreads over a year up to now, the writes follow it a second apart.
+            List<Expense> past = new ArrayList<>(rows);
+            long step = TimeUnit.DAYS.toMillis(365) / Math.max(1, rows);
+            for (int r = 0; r < rows; r++) {
+                past.add(new Expense(dtf.format(new Date(now - (rows - r) * step)), randomExpense(), null,
+                        CATEGORIES[r % CATEGORIES.length]));
+            }
+
+            List<ChangeEvent> events = new ArrayList<>(writes);
+            for (int w = 0; w < writes; w++) {
+                Object[] row = {dtf.format(new Date(now + w * 1000L)), randomExpense(), 0.0};
+                events.add(new ChangeEvent(ChangeEvent.Type.APPENDED, w, rows + w, row,
+                        CATEGORIES[w % CATEGORIES.length], null));
+            }
+
+            BudgetMonitor monitor = new BudgetMonitor();
+            AtomicLong alerts = new AtomicLong();
+            monitor.addListener(Runnable::run, alert -> alerts.incrementAndGet());
+            monitor.load(budgetList, past);
+
+            long start = System.nanoTime();
+            for (ChangeEvent event : events) {
+                monitor.changed(Collections.singletonList(event));
+            }
+            double incremental = (System.nanoTime() - start) / (double) writes;
+
+            // The rescan is measured on a sample of the writes, it would take too long on the large histories.
+            int sampled = Math.min(writes, Math.max(10, 20_000_000 / Math.max(1, rows * budgets)));
+            long[] times = new long[rows + sampled];
+            double[] values = new double[rows + sampled];
+            String[] categories = new String[rows + sampled];
+            for (int r = 0; r < rows; r++) {
+                times[r] = now - (rows - r) * step;
+                values[r] = past.get(r).getExpense();
+                categories[r] = past.get(r).getCategory();
+            }
+
+            double checksum = 0.0;
+            start = System.nanoTime();
+            for (int w = 0; w < sampled; w++) {
+                int last = rows + w;
+                times[last] = now + w * 1000L;
+                values[last] = (Double) events.get(w).getRow()[1];
+                categories[last] = events.get(w).getCategory();
+
+                for (Budget budget : budgetList) {
+                    long from = times[last] - budget.getPeriod().getMillis();
+                    double spent = 0.0;
+                    for (int r = 0; r <= last; r++) {
+                        if (times[r] > from && values[r] < 0 && budget.matches(categories[r])) {
+                            spent -= values[r];
+                        }
+                    }
+                    checksum += spent;
+                }
+            }
+            double rescan = (System.nanoTime() - start) / (double) sampled;
+
+            if (s == 0) {
+                continue;
+            }
+            System.out.printf("History %,d rows, %d budgets: incremental %.0f ns/write, rescan %.0f ns/write "
+                            + "(%d alerts, checksum %.0f)%n",
+                    rows, budgets, incremental, rescan, alerts.get(), checksum);
+        }
+    }
+
+    private static double randomExpense() {
+        return -ThreadLocalRandom.current().nextInt(1, 100);
+    }
+}